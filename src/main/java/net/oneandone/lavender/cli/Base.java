@@ -37,16 +37,37 @@ public abstract class Base implements Command {
     @Option("no-lock")
     protected boolean noLock = false;
 
+    /** seconds per host for commands running on all hosts of a cluster; 0 for no timeout */
+    @Option("timeout")
+    protected int timeout = 0;
+
+    /** null if not run by a daemon */
+    protected Daemon daemon;
+
     protected Base(Console console, Properties properties, Net net) {
         this.console = console;
         this.properties = properties;
         this.net = net;
+        this.daemon = null;
+    }
+
+    /** to use the connections and caches of the daemon */
+    public void setDaemon(Daemon daemon) {
+        this.daemon = daemon;
     }
 
     @Override
     public abstract void invoke() throws Exception;
 
     protected Pool pool() {
-        return new Pool(console.world, noLock ? null : user, await);
+        return pool(false);
+    }
+
+    /** @param optimistic true to lock hosts only while committing indexes; for publishing, which uploads content-addressed files */
+    protected Pool pool(boolean optimistic) {
+        if (daemon != null && optimistic) {
+            return daemon.jobPool();
+        }
+        return new Pool(console.world, noLock ? null : user, await, properties.sshSessions, optimistic);
     }
 }
@@ -0,0 +1,352 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.cli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.oneandone.lavender.config.Net;
+import net.oneandone.lavender.config.Pool;
+import net.oneandone.lavender.config.Properties;
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.lavender.index.IndexCache;
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.sushi.cli.Console;
+import net.oneandone.sushi.cli.Option;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs publishing jobs posted to a local http port, so they don't have to load net.xml, connect to the hosts and load
+ * indexes and caches again for every job. Jobs run one after another: they share the connections, and they'd wait
+ * for the cache lock anyway. The net is loaded once; post to /reload to load it again.
+ *
+ * Jobs run with the ssh keys of this process, and listening on localhost does not keep out other users or web pages
+ * opened in a browser. Thus, requests have to send the token from a file only readable by the user, requests from
+ * browsers are rejected by their Origin header, and the Host header has to name localhost to defeat dns rebinding.
+ */
+public class Daemon extends Base {
+    private static final Logger LOG = LoggerFactory.getLogger(Daemon.class);
+
+    /** commands accepted as jobs */
+    private static final List<String> JOBS = Arrays.asList("war", "svn", "file");
+
+    /** options of the pool shared by all jobs, passed when starting the daemon */
+    private static final List<String> POOL_OPTIONS = Arrays.asList("-user", "-await", "-no-lock");
+
+    /** labels of cached indexes, about 100 mb */
+    private static final int INDEX_LABELS = 500000;
+
+    private static final List<String> LOCALHOST = Arrays.asList("localhost", "127.0.0.1", "[::1]");
+
+    private static final String BEARER = "Bearer ";
+
+    @Option("port")
+    private int port;
+
+    /** re-created with a new token for every start */
+    private final FileNode tokenFile;
+    /** null if not started */
+    private byte[] token;
+
+    /** for jobs only */
+    private Net current;
+    /** for jobs only */
+    private Pool pool;
+    private final IndexCache indexCache;
+    /** md5 caches by file */
+    private final Map<FileNode, Md5Cache> md5Caches;
+    private final ExecutorService jobs;
+    /** null if not started or stopped */
+    private HttpServer server;
+
+    public Daemon(Console console, Properties properties, Net net) {
+        this(console, properties, net, 8771, (FileNode) console.world.getHome().join(".lavender.daemon.token"));
+    }
+
+    /** @param port 0 to pick a free one */
+    public Daemon(Console console, Properties properties, Net net, int port, FileNode tokenFile) {
+        super(console, properties, net);
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.token = null;
+        this.current = net;
+        this.pool = null;
+        this.indexCache = new IndexCache(INDEX_LABELS);
+        this.md5Caches = new HashMap<>();
+        this.jobs = Executors.newSingleThreadExecutor();
+        this.server = null;
+    }
+
+    @Override
+    public void invoke() throws IOException, InterruptedException {
+        start();
+        console.info.println("listening on " + server.getAddress() + ", token in " + tokenFile);
+        synchronized (this) {
+            while (server != null) {
+                wait();
+            }
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("already started");
+        }
+        token = createToken(tokenFile.toPath());
+        // localhost only: jobs run with the ssh keys of this process
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Daemon.this.handle(exchange);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("job failed: " + e.getMessage(), e);
+                    throw e;
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /** @return port of the started daemon */
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (server == null) {
+                return;
+            }
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+            server = null;
+            Files.deleteIfExists(tokenFile.toPath());
+            notifyAll();
+        }
+        jobs.shutdown();
+        jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    //-- for jobs
+
+    /** @return pool to close by the job */
+    public Pool jobPool() {
+        if (pool == null) {
+            pool = new Pool(console.world, noLock ? null : user, await, properties.sshSessions, true);
+            pool.setIndexCache(indexCache);
+        }
+        return pool.retain();
+    }
+
+    public Md5Cache md5Cache(FileNode file) throws IOException {
+        Md5Cache result;
+
+        result = md5Caches.get(file);
+        result = result == null ? Md5Cache.load(file) : Md5Cache.reload(result);
+        md5Caches.put(file, result);
+        return result;
+    }
+
+    //--
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final List<String> args;
+        final PrintWriter writer;
+        int code;
+
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, "requests from browsers are not allowed");
+            return;
+        }
+        if (!isLocalhost(exchange.getRequestHeaders().getFirst("Host"))) {
+            respond(exchange, 403, "host localhost expected");
+            return;
+        }
+        if (!hasToken(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            respond(exchange, 401, "token from " + tokenFile + " expected: Authorization: " + BEARER + "<token>");
+            return;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "post expected");
+            return;
+        }
+        switch (exchange.getRequestURI().getPath()) {
+            case "/":
+                args = args(exchange.getRequestBody());
+                if (args.isEmpty() || !JOBS.contains(args.get(0))) {
+                    respond(exchange, 400, "expected one of " + JOBS + ", got " + args);
+                    return;
+                }
+                for (String arg : args) {
+                    if (POOL_OPTIONS.contains(arg)) {
+                        respond(exchange, 400, arg + ": not allowed for jobs, pass it when starting the daemon");
+                        return;
+                    }
+                }
+                break;
+            case "/reload":
+                args = null;
+                break;
+            default:
+                respond(exchange, 404, "not found: " + exchange.getRequestURI().getPath());
+                return;
+        }
+        // output is streamed, so the exit code is the last line
+        exchange.sendResponseHeaders(200, 0);
+        writer = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), true);
+        try {
+            code = jobs.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return args == null ? reload(writer) : run(writer, args);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+        } catch (ExecutionException e) {
+            writer.println(e.getCause().toString());
+            code = 1;
+        }
+        writer.println("exit " + code);
+        writer.close();
+    }
+
+    private int run(PrintWriter writer, List<String> args) throws IOException {
+        Console jobConsole;
+
+        if (pool != null) {
+            pool.dropBroken();
+        }
+        jobConsole = new Console(console.world, writer, writer, new ByteArrayInputStream(new byte[0]));
+        LOG.info("job " + args);
+        return new Main(jobConsole, properties, current, this).run(args.toArray(new String[args.size()]));
+    }
+
+    /** loads the net and re-connects, because connections are identified by the hosts of the net */
+    private int reload(PrintWriter writer) throws IOException {
+        current = properties.loadNet();
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        writer.println("net reloaded");
+        return 0;
+    }
+
+    /** the file is created with its permissions, so it's never readable by others */
+    private static byte[] createToken(Path file) throws IOException {
+        byte[] bytes;
+        String result;
+
+        bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        result = Hex.encodeString(bytes);
+        Files.deleteIfExists(file);
+        Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(file, (result + "\n").getBytes(StandardCharsets.UTF_8));
+        return result.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean hasToken(String authorization) {
+        if (authorization == null || !authorization.startsWith(BEARER)) {
+            return false;
+        }
+        // constant time, so the token cannot be guessed from response times
+        return MessageDigest.isEqual(token, authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @param host header value, with optional port */
+    private static boolean isLocalhost(String host) {
+        int idx;
+
+        if (host == null) {
+            return false;
+        }
+        idx = host.lastIndexOf(':');
+        if (idx != -1 && idx > host.lastIndexOf(']')) {
+            host = host.substring(0, idx);
+        }
+        return LOCALHOST.contains(host.toLowerCase());
+    }
+
+    private static List<String> args(InputStream src) throws IOException {
+        ByteArrayOutputStream dest;
+        byte[] buffer;
+        int count;
+        List<String> result;
+
+        dest = new ByteArrayOutputStream();
+        buffer = new byte[4096];
+        while ((count = src.read(buffer)) != -1) {
+            dest.write(buffer, 0, count);
+        }
+        result = new ArrayList<>();
+        for (String line : new String(dest.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes;
+
+        bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream dest = exchange.getResponseBody()) {
+            dest.write(bytes);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package net.oneandone.lavender.cli;
 import com.jcraft.jsch.JSchException;
 import net.oneandone.lavender.config.Connection;
 import net.oneandone.lavender.config.Net;
+import net.oneandone.lavender.config.Parallel;
 import net.oneandone.lavender.config.Pool;
 import net.oneandone.lavender.config.Properties;
 import net.oneandone.sushi.cli.ArgumentException;
@@ -49,20 +50,37 @@ public class Direct extends Base {
     }
 
     @Override
-    public void invoke() throws IOException, JSchException {
-        SshRoot root;
+    public void invoke() throws IOException {
+        List<Connection> connections;
+        List<String[]> results;
+        String[] result;
 
         if (command.size() == 0) {
             throw new ArgumentException("missing command");
         }
         try (Pool pool = pool()) {
-            for (Connection connection : net.get(cluster).connect(pool)) {
-                root = (SshRoot) connection.join().getRoot();
-                console.info.println(connection.getHost().toString());
-                try {
-                    console.info.println(root.exec(Strings.toArray(command)));
-                } catch (ExitCode e) {
-                    console.error.println(e.toString());
+            connections = net.get(cluster).connect(pool);
+            results = Parallel.run("direct", connections, timeout, new Parallel.Task<Connection, String[]>() {
+                @Override
+                public String[] invoke(Connection connection) throws JSchException {
+                    SshRoot root;
+
+                    root = (SshRoot) connection.join().getRoot();
+                    try {
+                        return new String[] { root.exec(Strings.toArray(command)), null };
+                    } catch (ExitCode e) {
+                        return new String[] { null, e.toString() };
+                    }
+                }
+            });
+            // print in host order
+            for (int i = 0; i < connections.size(); i++) {
+                result = results.get(i);
+                console.info.println(connections.get(i).getHost().toString());
+                if (result[1] == null) {
+                    console.info.println(result[0]);
+                } else {
+                    console.error.println(result[1]);
                 }
             }
         }
@@ -54,6 +54,10 @@ public class File extends Base {
     @Option("prefix")
     private String prefix;
 
+    /** skip uploads recorded by a previous publish of this archive that did not finish */
+    @Option("resume")
+    private boolean resume;
+
     public File(Console console, Properties properties, Net net) {
         super(console, properties, net);
     }
@@ -67,6 +71,7 @@ public class File extends Base {
         Filter filter;
         Module module;
         Distributor distributor;
+        FileNode cache;
         long changed;
         Index index;
 
@@ -99,10 +104,18 @@ public class File extends Base {
             }
         };
 
-        try (Pool pool = pool()) {
+        try (Pool pool = pool(true)) {
             distributor = target.open(pool, name);
-            changed = module.publish(distributor);
-            index = distributor.close();
+            distributor.setBatch(properties.uploadBatch, properties.uploadGzip);
+            distributor.setGcGrace(properties.gcGrace);
+            cache = properties.lockedCache(await, user);
+            try {
+                distributor.setProgress(cache, resume);
+                changed = module.publish(distributor);
+                index = distributor.close();
+            } finally {
+                properties.unlockCache();
+            }
             module.saveCaches();
         }
         console.info.println("done: " + changed + "/" + index.size() + " files changed");
@@ -15,28 +15,40 @@
  */
 package net.oneandone.lavender.cli;
 
-import com.jcraft.jsch.JSchException;
 import net.oneandone.lavender.config.Cluster;
 import net.oneandone.lavender.config.Connection;
 import net.oneandone.lavender.config.Docroot;
 import net.oneandone.lavender.config.Net;
+import net.oneandone.lavender.config.Parallel;
 import net.oneandone.lavender.config.Pool;
 import net.oneandone.lavender.config.Properties;
+import net.oneandone.lavender.index.AllIndex;
+import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.index.Generation;
 import net.oneandone.lavender.index.Hex;
 import net.oneandone.lavender.index.Index;
 import net.oneandone.lavender.index.Label;
+import net.oneandone.lavender.index.Shell;
+import net.oneandone.lavender.index.Verifier;
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.lavender.modules.Resource;
 import net.oneandone.sushi.cli.Console;
 import net.oneandone.sushi.cli.Option;
 import net.oneandone.sushi.cli.Value;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.file.FileNode;
-import net.oneandone.sushi.fs.ssh.SshNode;
-import net.oneandone.sushi.io.OS;
-import net.oneandone.sushi.util.Separator;
-import net.oneandone.sushi.util.Strings;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -44,6 +56,9 @@ import java.util.Map;
 import java.util.Set;
 
 public class Fsck extends Base {
+    /** scripts per host hashing files in parallel; more if there are more sessions */
+    private static final int MD5_CHANNELS = 4;
+
     @Option("md5")
     private boolean md5check;
 
@@ -53,6 +68,10 @@ public class Fsck extends Base {
     @Option("gc")
     private boolean gc;
 
+    /** skip docroots checked without problems by a previous run, unless their indexes changed */
+    @Option("resume")
+    private boolean resume;
+
     @Value(name = "cluster", position = 1)
     private String clusterName;
 
@@ -63,151 +82,367 @@ public class Fsck extends Base {
     @Override
     public void invoke() throws IOException {
         Cluster cluster;
-        Node docrootNode;
+        final Checkpoint checkpoint;
         boolean problem;
-        Map<String, Index> prevIndexes;
-        Map<String, Index> indexes;
-        Index left;
-        Index right;
+        List<Connection> connections;
+        List<List<Check>> hosts;
+        final List<Docroot> docroots;
+        Check check;
+        Map<String, String> prevDigests;
 
         problem = false;
         cluster = net.get(clusterName);
+        checkpoint = Checkpoint.open(properties.unlockedCache().join("fsck-" + cluster.getName() + ".checkpoint"),
+                (md5check ? "md5" : "") + (gc ? "gc" : ""), resume);
+        docroots = new ArrayList<>();
+        for (Docroot docroot : cluster.docroots()) {
+            docroots.add(docroot);
+        }
         try (Pool pool = pool()) {
-            for (Docroot docroot : cluster.docroots()) {
-                prevIndexes = null;
-                for (Connection connection : cluster.connect(pool)) {
-                    console.info.println(connection.getHost() + " " + docroot.aliases().get(0).getName());
-                    docrootNode = docroot.node(connection);
-                    if (docrootNode.exists()) {
-                        indexes = filesAndReferences(connection, docrootNode, docroot);
-                        if (indexes == null) {
+            connections = cluster.connect(pool);
+            // all hosts in parallel; docroots of a host one after another, so a host's connection is used by one thread only
+            hosts = Parallel.run("fsck", connections, timeout, new Parallel.Task<Connection, List<Check>>() {
+                @Override
+                public List<Check> invoke(Connection connection) throws IOException {
+                    List<Check> result;
+
+                    result = new ArrayList<>();
+                    for (Docroot docroot : docroots) {
+                        result.add(check(connection, docroot, checkpoint));
+                    }
+                    return result;
+                }
+            });
+            for (int d = 0; d < docroots.size(); d++) {
+                prevDigests = null;
+                for (int i = 0; i < hosts.size(); i++) {
+                    check = hosts.get(i).get(d);
+                    // output is buffered per host, print it in host order
+                    console.info.println(connections.get(i).getHost() + " " + docroots.get(d).aliases().get(0).getName());
+                    console.info.print(check.output);
+                    console.info.flush();
+                    if (check.exists) {
+                        if (check.digests == null) {
                             problem = true;
                         } else {
-                            if (prevIndexes != null) {
-                                if (!prevIndexes.keySet().equals(indexes.keySet())) {
-                                    console.error.println("index file list differs: " + prevIndexes.keySet() + " vs " + indexes.keySet());
+                            if (prevDigests != null) {
+                                if (!prevDigests.keySet().equals(check.digests.keySet())) {
+                                    console.error.println("index file list differs: " + prevDigests.keySet() + " vs " + check.digests.keySet());
                                     problem = true;
                                 } else {
-                                    for (String name : prevIndexes.keySet()) {
-                                        left = prevIndexes.get(name);
-                                        right = indexes.get(name);
-                                        if (!left.equals(right)) {
+                                    for (String name : prevDigests.keySet()) {
+                                        if (!prevDigests.get(name).equals(check.digests.get(name))) {
                                             console.error.println("index files differ: " + name);
                                             problem = true;
                                         }
                                     }
                                 }
                             }
-                            prevIndexes = indexes;
+                            prevDigests = check.digests;
                         }
                     }
                 }
             }
+        } finally {
+            checkpoint.close();
         }
         if (problem) {
             throw new IOException("FSCK FAILED");
         } else {
+            checkpoint.delete();
             console.info.println("ok");
         }
     }
 
-    /** @return Indexes on this docroot (file name mapped to Index object). Null if a problem was detected. */
-    private Map<String, Index> filesAndReferences(Connection connection, Node docroot, Docroot docrootObj) throws IOException {
+    /** Result of checking one docroot on one host */
+    private static class Check {
+        public final String output;
+        public final boolean exists;
+        /** digests of the application indexes by name; null if a problem was detected */
+        public final Map<String, String> digests;
+
+        public Check(String output, boolean exists, Map<String, String> digests) {
+            this.output = output;
+            this.exists = exists;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Docroots checked without problems, with the manifest of their indexes. Interrupted or failed runs keep the
+     * checkpoint, so they can resume; it's deleted when all docroots are ok.
+     *
+     * Format, one line per docroot:
+     *   docroot manifest options
+     */
+    private static class Checkpoint {
+        public static Checkpoint open(FileNode file, String options, boolean resume) throws IOException {
+            Checkpoint result;
+            String[] fields;
+
+            result = new Checkpoint(file, options);
+            if (resume && file.exists()) {
+                for (String line : file.readLines()) {
+                    fields = line.split(" ", -1);
+                    if (fields.length == 3 && fields[2].equals(options)) {
+                        result.done.put(fields[0], fields[1]);
+                    }
+                }
+            }
+            result.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            return result;
+        }
+
+        private final FileNode file;
+        private final String options;
+        /** manifest digest by docroot uri */
+        private final Map<String, String> done;
+        private Writer writer;
+
+        private Checkpoint(FileNode file, String options) {
+            this.file = file;
+            this.options = options;
+            this.done = new HashMap<>();
+            this.writer = null;
+        }
+
+        public synchronized boolean isDone(Node docroot, String manifest) {
+            return manifest.equals(done.get(docroot.getURI().toString()));
+        }
+
+        public synchronized void add(Node docroot, String manifest) throws IOException {
+            writer.write(docroot.getURI() + " " + manifest + " " + options + "\n");
+            writer.flush();
+        }
+
+        public synchronized void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+
+        public void delete() throws IOException {
+            close();
+            file.deleteFileOpt();
+        }
+    }
+
+    /** runs in parallel for all hosts, output is buffered */
+    private Check check(Connection connection, Docroot docroot, Checkpoint checkpoint) throws IOException {
+        StringWriter buffer;
+        PrintWriter writer;
+        Console out;
+        Node docrootNode;
+        Generation generation;
+        String manifest;
+        Map<String, String> digests;
+
+        buffer = new StringWriter();
+        writer = new PrintWriter(buffer, true);
+        out = new Console(console.world, writer, writer, new ByteArrayInputStream(new byte[0]));
+        out.setVerbose(console.getVerbose());
+        docrootNode = docroot.node(connection);
+        if (!docrootNode.exists()) {
+            writer.flush();
+            return new Check(buffer.toString(), false, null);
+        }
+        generation = Generation.load(docroot.indexes(connection));
+        manifest = generation.manifestDigest();
+        if (manifest != null && checkpoint.isDone(docrootNode, manifest)) {
+            out.info.println("  unchanged since checkpoint");
+            digests = digests(generation);
+        } else if (filesAndReferences(out, connection, docrootNode, docroot, generation)) {
+            digests = null;
+        } else {
+            digests = digests(generation);
+            if (manifest != null) {
+                checkpoint.add(docrootNode, manifest);
+            }
+        }
+        writer.flush();
+        return new Check(buffer.toString(), true, digests);
+    }
+
+    private static Map<String, String> digests(Generation generation) throws IOException {
+        Map<String, String> result;
+
+        result = new HashMap<>();
+        for (String name : appIndexes(generation)) {
+            result.put(name, generation.digest(name));
+        }
+        return result;
+    }
+
+    /**
+     * All indexes are read from the same generation. File lists are compared with hash sets, so the time is linear
+     * in the number of files.
+     *
+     * @return true if a problem was detected
+     */
+    private boolean filesAndReferences(Console out, Connection connection, Node docroot, Docroot docrootObj,
+                                       Generation generation) throws IOException {
         boolean problem;
         Set<String> references;
-        List<String> files;
+        Set<String> files;
         Index index;
         List<String> tmp;
         Index all;
-        Map<String, Index> result;
+        Map<String, byte[]> expecteds;
+        List<String> names;
+        Set<String> tombstones;
+        Set<String> recent;
 
-        result = new HashMap<>();
         problem = false;
         references = new HashSet<>();
-        console.verbose.println("  docroot "  + docroot.getURI().toString());
-        console.info.print("  files: ");
-        files = find(docroot, "-type", "f");
-        console.info.println(files.size());
-        console.info.print("  references: ");
+        out.verbose.println("  docroot "  + docroot.getURI().toString());
+        out.info.print("  files: ");
+        files = new HashSet<>();
+        find(docroot, files, "-type", "f");
+        out.info.println(files.size());
+        out.info.print("  references: ");
         all = new Index();
-        for (Node file : docrootObj.indexList(connection)) {
-            index = Index.load(file);
-            result.put(file.getName(), index);
+        expecteds = new HashMap<>();
+        names = appIndexes(generation);
+        for (String name : names) {
+            index = generation.load(name);
             try {
                 for (Label label : index) {
                     references.add(label.getLavendelizedPath());
                     all.addReference(label.getLavendelizedPath(), label.md5());
+                    expecteds.put(label.getLavendelizedPath(), label.md5());
                 }
             } catch (IllegalStateException e) {
-                throw new IllegalStateException(file.getURI() + ": " + e.getMessage(), e);
+                throw new IllegalStateException(docrootObj.index(connection, name).getURI() + ": " + e.getMessage(), e);
             }
         }
-        console.info.println(references.size());
-        tmp = new ArrayList<>(references);
-        tmp.removeAll(files);
-        console.error.println("  dangling references: " + tmp.size());
+        out.info.println(references.size());
+        tmp = difference(references, files);
+        out.error.println("  dangling references: " + tmp.size());
         if (tmp.isEmpty()) {
-            if (result.size() == 0) {
+            if (names.isEmpty()) {
                 // there's no .all.idx
             } else {
-                if (allIdxBroken(connection, docrootObj, all)) {
+                if (allIdxBroken(out, connection, docrootObj, generation, all)) {
                     problem = true;
                 }
             }
         } else {
             problem = true;
             for (String path : tmp) {
-                console.verbose.println("    " + path);
+                out.verbose.println("    " + path);
             }
-            removeReferences(connection, docrootObj, tmp);
-            console.verbose.println("skipping allIdx check because we have dangling references");
+            removeReferences(out, connection, docrootObj, generation, new HashSet<>(tmp));
+            out.verbose.println("skipping allIdx check because we have dangling references");
         }
         if (md5check) {
-            if (md5check(docroot, all)) {
+            if (md5check(out, connection, docrootObj, docroot, expecteds)) {
                 problem = true;
             }
         }
-        tmp = new ArrayList<>(files);
-        tmp.removeAll(references);
-        console.error.println("  unreferenced files: " + tmp.size());
+        tmp = difference(files, references);
+        if (!gc) {
+            // removed by a later publish, after the grace period
+            tombstones = new HashSet<>();
+            for (Label label : generation.load(Distributor.TOMBSTONES)) {
+                tombstones.add(label.getOriginalPath());
+            }
+            if (!tombstones.isEmpty()) {
+                tmp.removeAll(tombstones);
+                out.info.println("  tombstones: " + tombstones.size());
+            }
+        }
+        if (!gc && !tmp.isEmpty()) {
+            // publishes upload files before they commit, and they do so without lock
+            recent = new HashSet<>();
+            find(docroot, recent, "-type", "f", "!", "-mmin", "+" + grace());
+            recent.retainAll(tmp);
+            if (!recent.isEmpty()) {
+                tmp.removeAll(recent);
+                out.info.println("  recent unreferenced files: " + recent.size() + " (modified in the last " + grace()
+                        + " minutes, might belong to a publish in progress)");
+                for (String path : recent) {
+                    out.verbose.println("    " + path);
+                }
+            }
+        }
+        out.error.println("  unreferenced files: " + tmp.size());
         if (!tmp.isEmpty()) {
             if (gc) {
                 if (problem) {
                     throw new IOException("garbage collection not allowed - fix the above problems first");
                 }
-                gc(docroot, tmp);
+                gc(out, docroot, tmp);
             } else {
                 problem = true;
                 for (String path : tmp) {
-                    console.verbose.println("    " + path);
+                    out.verbose.println("    " + path);
                 }
             }
         }
-        return problem ? null : result;
+        if (gc && !problem) {
+            gcIndexes(out, generation);
+        }
+        return problem;
+    }
+
+    /** @return sorted elements of left that are not in right */
+    private static List<String> difference(Set<String> left, Set<String> right) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String str : left) {
+            if (!right.contains(str)) {
+                result.add(str);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** @return names of the application indexes, i.e. all indexes except the all index shards */
+    private static List<String> appIndexes(Generation generation) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String name : generation.names()) {
+            if (!name.startsWith(".")) {
+                result.add(name);
+            }
+        }
+        return result;
     }
 
-    private boolean allIdxBroken(Connection connection, Docroot docrootObj, Index all) throws IOException {
+    private boolean allIdxBroken(Console out, Connection connection, Docroot docrootObj, Generation generation, Index all) throws IOException {
         Index allLoaded;
         Node repaired;
 
-        allLoaded = Index.load(docrootObj.index(connection, Index.ALL_IDX));
+        try {
+            allLoaded = AllIndex.load(generation).toIndex();
+        } catch (IOException e) {
+            out.error.println(e.getMessage());
+            allLoaded = null;
+        }
         if (all.equals(allLoaded)) {
             return false;
         }
+        // a single-file all index; it's split into shards by the next publish after replacing the manifest with it
         repaired = repairedLocation(docrootObj.index(connection, Index.ALL_IDX));
         repaired.getParent().mkdirsOpt();
-        console.error.println("all-index is broken");
+        out.error.println("all-index is broken");
         all.save(repaired);
         return true;
     }
 
-    private void removeReferences(Connection connection, Docroot docrootObj, List<String> references) throws IOException {
+    private void removeReferences(Console out, Connection connection, Docroot docrootObj, Generation generation,
+                                  Set<String> references) throws IOException {
         Index orig;
         Index repaired;
         Node repairedFile;
 
-        for (Node file : docrootObj.indexList(connection)) {
-            orig = Index.load(file);
+        for (String name : appIndexes(generation)) {
+            orig = generation.load(name);
             repaired = new Index();
             for (Label label : orig) {
                 if (!references.contains(label.getLavendelizedPath())) {
@@ -215,8 +450,8 @@ public class Fsck extends Base {
                 }
             }
             if (orig.size() != repaired.size()) {
-                repairedFile = repairedLocation(file);
-                console.info.println("writing repaired index: " + repairedFile);
+                repairedFile = repairedLocation(docrootObj.index(connection, name));
+                out.info.println("writing repaired index: " + repairedFile);
                 repairedFile.getParent().mkdirsOpt();
                 repaired.save(repairedFile);
             }
@@ -228,182 +463,128 @@ public class Fsck extends Base {
         return file.getParent().getParent().getParent().join("repaired-indexes", file.getParent().getName(), file.getName());
     }
 
-    private boolean md5check(Node docroot, Index index) throws IOException {
-        boolean problem;
-        List<String> paths;
-        List<String> expecteds;
-
-        problem = false;
-        console.info.print("  md5 check: ");
-        paths = new ArrayList<>();
-        expecteds = new ArrayList<>();
-        for (Label label : index) {
-            paths.add(label.getOriginalPath());
-            expecteds.add(Hex.encodeString(label.md5()));
-            if (paths.size() > 500) {
-                if (md5check(docroot, paths, expecteds)) {
-                    problem = true;
-                }
-                paths.clear();
-                expecteds.clear();
+    /** hashes files with changed size or modified time on all sessions of the host; mismatches are printed while running */
+    private boolean md5check(Console out, final Connection connection, Docroot docrootObj, Node docroot,
+                             Map<String, byte[]> expecteds) throws IOException {
+        Md5Cache cache;
+        Verifier verifier;
+        final boolean[] problem;
+        int hashed;
+
+        out.info.print("  md5 check: ");
+        // CAUTION: directly in the cache directory - sub directories would cause permission problems
+        cache = Md5Cache.load(properties.unlockedCache().join("fsck-"
+                + Hex.encodeString(Resource.md5(docroot.getURI().toString().getBytes(StandardCharsets.UTF_8))) + ".md5"));
+        verifier = new Verifier(cache, mac, Math.max(MD5_CHANNELS, connection.sessions().size()));
+        problem = new boolean[1];
+        hashed = verifier.run(docrootObj.nodes(connection), expecteds, new Verifier.Listener() {
+            @Override
+            public void mismatch(String path, String expected, String computed) {
+                problem[0] = true;
+                // not buffered, to see problems before all hosts are done
+                console.error.println(connection.getHost() + " " + path + ": md5 broken: expected " + expected
+                        + ", got " + (computed == null ? "no file" : computed));
             }
-        }
-        if (paths.size() > 0) {
-            if (md5check(docroot, paths, expecteds)) {
-                problem = true;
-            }
-        }
-        console.info.println(problem ? "failed" : "ok");
-        return problem;
-    }
-
-    private static final Separator SEPARATOR = Separator.RAW_LINE;
-
-    private boolean md5check(Node docroot, List<String> paths, List<String> expecteds) throws IOException {
-        String md5all;
-        List<String> computeds;
-        boolean problem;
-        int i;
-        String expected;
-
-        problem = false;
-        md5all = exec(docroot, Strings.append(mac ? new String[] { "md5", "-q" } : new String[] { "md5sum" }, Strings.toArray(paths)));
-        computeds = SEPARATOR.split(md5all);
-        if (expecteds.size() != computeds.size()) {
-            throw new IllegalStateException(expecteds + " vs " + computeds);
-        }
-        i = 0;
-        for (String computed : computeds) {
-            computed = computed.trim();
-            if (!mac) {
-                // because md5sum prints the checksum followed by the path
-                computed = computed.substring(0, computed.indexOf(' '));
-            }
-            expected = expecteds.get(i);
-            if (!expected.equals(computed)) {
-                console.error.println(paths.get(i)+ ": md5 broken: expected " + expected + ", got " + computed);
-                problem = true;
-            }
-            i++;
-        }
-        return problem;
+        });
+        out.info.println((problem[0] ? "failed" : "ok") + " (" + hashed + " of " + expecteds.size() + " files hashed)");
+        return problem[0];
     }
 
     public static List<String> find(Node base, String ... args) throws IOException {
-        String str;
-        List<String> lst;
-
-        str = exec(base, Strings.append(new String[] { "find", "." }, args));
-        lst = new ArrayList<>();
-        for (String path : OS.CURRENT.lineSeparator.split(str)) {
-            if (path.startsWith("./")) {
-                path = path.substring(2);
-            }
-            path = path.trim();
-            if (!path.isEmpty()) {
-                lst.add(path);
-            }
-        }
-        return lst;
-    }
+        List<String> result;
 
-    private static String exec(Node dir, String ... cmd) throws IOException {
-        if (dir instanceof SshNode) {
-            try {
-                return ((SshNode) dir).getRoot().exec(Strings.append(new String[] { "cd", "/" + dir.getPath(), "&&" }, escape(cmd)));
-            } catch (JSchException e) {
-                throw new IOException();
-            }
-        } else if (dir instanceof FileNode) {
-            return ((FileNode) dir).exec(cmd);
-        } else {
-            throw new UnsupportedOperationException("exec on " + dir.getClass());
-        }
+        result = new ArrayList<>();
+        find(base, result, args);
+        return result;
     }
 
-    // TODO: jsch problem -- it takes the argument list as a single string ...
-    private static String[] escape(String[] args) {
-        String[] result;
+    /** adds the paths found to the collection while find is running, relative to base */
+    private static void find(Node base, final Collection<String> result, String ... args) throws IOException {
+        Shell shell;
+        StringBuilder script;
 
-        result = new String[args.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = escape(args[i]);
+        shell = Shell.createOpt(base);
+        if (shell == null) {
+            throw new UnsupportedOperationException("find on " + base.getClass());
         }
-        return result;
-    }
-
-    // TODO: jsch problem -- it takes the argument list as a single string ...
-    private static String escape(String arg) {
-        int max;
-        StringBuilder result;
-        char c;
-
-        max = arg.length();
-        result = new StringBuilder(max);
-        for (int i = 0; i < max; i++) {
-            c = arg.charAt(i);
-            switch (c) {
-                case '\'':
-                case '"':
-                case ' ':
-                case '\t':
-                case '&':
-                case '|':
-                case '(':
-                case ')':
-                case '\n':
-                    result.append('\\');
-                    result.append(c);
-                    break;
-                default:
-                    result.append(c);
-                    break;
-            }
+        script = new StringBuilder("cd ").append(Shell.quote(shell.directory)).append(" && find .");
+        for (String arg : args) {
+            script.append(' ').append(Shell.quote(arg));
         }
-        return result.toString();
+        shell.exec("find", script.toString(), Shell.NO_INPUT, new Shell.Output() {
+            @Override
+            public void line(String path) {
+                if (path.startsWith("./")) {
+                    path = path.substring(2);
+                }
+                if (!path.isEmpty() && !path.equals(".")) {
+                    result.add(path);
+                }
+            }
+        });
     }
 
     //--
 
-    private void gc(Node base, List<String> files) throws IOException {
-        gcFiles(base, files);
-        gcDirectories(base);
+    private void gc(Console out, Node base, List<String> files) throws IOException {
+        gcFiles(out, base, files);
+        gcDirectories(out, base);
     }
 
-    private void gcFiles(Node base, List<String> files) throws IOException {
-        console.info.print("scanning files ...");
-        console.info.println(" done: " + files.size());
-        for (String file : files) {
-            console.verbose.println("rm " + file);
-            base.join(file).deleteFile();
-        }
-        console.info.println(files.size() + " unreferenced files deleted.");
+    /** unreferenced files modified more recently are kept - publishing uploads files before it commits the indexes */
+    private int grace() {
+        return properties.gcGrace < 0 ? Distributor.GC_GRACE_MINUTES : properties.gcGrace;
     }
 
-    private void gcDirectories(Node base) throws IOException {
-        List<String> paths;
+    /** deletes the files with a single command; hosts run in parallel */
+    private void gcFiles(Console out, Node base, List<String> files) throws IOException {
+        int count;
 
-        console.info.print("scanning empty directories ...");
-        paths = Fsck.find(base, "-type", "d", "-empty");
-        console.info.println(" done: " + paths.size());
-        for (String path : paths) {
-            rmdir(base, base.join(path));
+        out.info.print("deleting files ...");
+        count = Distributor.gc(base, files, grace());
+        out.info.println(" done");
+        if (count < files.size()) {
+            out.info.println((files.size() - count) + " unreferenced files modified in the last " + grace() + " minutes are kept.");
         }
-        console.info.println(paths.size() + " empty directories deleted.");
+        out.info.println(count + " unreferenced files deleted.");
     }
 
-    private void rmdir(Node base, Node dir) throws IOException {
-        while (true) {
-            if (dir.equals(base)) {
-                return;
-            }
-            console.verbose.println("rmdir " + dir.getPath());
-            dir.deleteDirectory();
-            dir = dir.getParent();
-            if (dir.list().size() > 0) {
-                return;
+    /** removes index data files not referenced by the current or previous generation; recent ones may belong to a publish that has not switched yet */
+    private void gcIndexes(Console out, Generation generation) throws IOException {
+        Node data;
+        Set<String> referenced;
+        List<String> paths;
+        int count;
+
+        data = generation.getDir().join(Generation.DATA);
+        if (!data.exists()) {
+            return;
+        }
+        referenced = generation.referenced();
+        paths = new ArrayList<>();
+        for (String path : find(data, "-type", "f", "-mmin", "+" + grace())) {
+            if (!referenced.contains(Generation.DATA + "/" + path)) {
+                out.verbose.println("rm " + path);
+                paths.add(path);
             }
         }
+        count = Distributor.gc(data, paths, grace());
+        out.info.println(count + " unreferenced index files deleted.");
     }
 
+    /**
+     * Removes empty directories in one pass. Recent ones are kept, because publishes create directories without lock
+     * before uploading into them; parents of deleted files are removed by gcFiles.
+     */
+    private void gcDirectories(Console out, Node base) throws IOException {
+        List<String> paths;
+
+        out.info.print("deleting empty directories ...");
+        paths = find(base, "-mindepth", "1", "-type", "d", "-empty", "-mmin", "+" + grace(), "-print", "-delete");
+        out.info.println(" done");
+        for (String path : paths) {
+            out.verbose.println("rmdir " + path);
+        }
+        out.info.println(paths.size() + " empty directories deleted.");
+    }
 }
@@ -20,6 +20,7 @@ import net.oneandone.lavender.config.Properties;
 import net.oneandone.sushi.cli.Child;
 import net.oneandone.sushi.cli.Cli;
 import net.oneandone.sushi.cli.Command;
+import net.oneandone.sushi.cli.Console;
 import net.oneandone.sushi.cli.Option;
 import net.oneandone.sushi.util.Strings;
 
@@ -45,26 +46,42 @@ public class Main extends Cli implements Command {
 
     private Net lazyNet;
     private final Properties properties;
+    /** null if not run by a daemon */
+    private final Daemon daemon;
 
     public Main(Properties properties, Net net) {
         super(properties.world);
         this.properties = properties;
         this.lazyNet = net;
+        this.daemon = null;
+    }
+
+    /** for jobs of a daemon */
+    public Main(Console console, Properties properties, Net net, Daemon daemon) {
+        super(console);
+        this.properties = properties;
+        this.lazyNet = net;
+        this.daemon = daemon;
     }
 
     @Child("war")
     public Command war() throws IOException {
-        return new War(console, properties, net());
+        return served(new War(console, properties, net()));
     }
 
     @Child("svn")
     public Command svn() throws IOException {
-        return new Svn(console, properties, Strings.removeLeft(properties.svn.toString(), "svn:"), net());
+        return served(new Svn(console, properties, Strings.removeLeft(properties.svn.toString(), "svn:"), net()));
     }
 
     @Child("file")
     public Command file() throws IOException {
-        return new File(console, properties, net());
+        return served(new File(console, properties, net()));
+    }
+
+    @Child("daemon")
+    public Command daemon() throws IOException {
+        return new Daemon(console, properties, net());
     }
 
     @Child("direct")
@@ -82,24 +99,35 @@ public class Main extends Cli implements Command {
         console.info.println("usage: 'lavender' command");
         console.info.println();
         console.info.println("publishing commands");
-        console.info.println("  'war' global-options war idxName target+");
+        console.info.println("  'war' global-options ['-resume'] war idxName target+");
         console.info.println("                            publish resources from the specified war, addes nodes- and index file to the war;");
         console.info.println("                            target = type '=' cluster ['/' alias]");
+        console.info.println("                            -resume skips files uploaded by a previous run that did not finish");
         console.info.println("  'svn' global-options ['-type' type] directory cluster");
         console.info.println("                            publish resources from <svn>/data/<directory> to <docroot>/<directory>");
         console.info.println("                            type defaults to 'svn'; <svn> is picked from lavender.properties");
-        console.info.println("  'file' global-options ['-prefix' prefix] archive idxName type cluster");
+        console.info.println("  'file' global-options ['-prefix' prefix] ['-resume'] archive idxName type cluster");
         console.info.println("                            publish resources from archive to the specified cluster;");
         console.info.println("                            archive is simply a directory or an zip archive (e.g. a jar- or zip file9");
+        console.info.println("                            -resume skips files uploaded by a previous run that did not finish");
+        console.info.println("  'daemon' global-options ['-port' port]");
+        console.info.println("                            serves 'war', 'svn' and 'file' jobs on localhost, with connections and caches kept open;");
+        console.info.println("                            post the job's arguments, one per line, to http://localhost:<port>/ - default port is 8771;");
+        console.info.println("                            jobs run one after another, output ends with 'exit <code>'; post to /reload to re-load net.xml;");
+        console.info.println("                            requests need header 'Authorization: Bearer <token>', with the token from ~/.lavender.daemon.token");
+        console.info.println("                            -user, -await and -no-lock apply to all jobs, jobs passing them are rejected");
         console.info.println("other commands");
         console.info.println("  'help'                    print this message");
         console.info.println("  'version'                 print version information");
         console.info.println("  'direct' cluster arg+     executes the specified command on all machines of the cluster");
-        console.info.println("  'fsck' ['-md5'] ['-gc'] cluster");
+        console.info.println("  'fsck' ['-md5'] ['-gc'] ['-resume'] cluster");
         console.info.println("                            checks if all files are indexed and referenced and the same on all machines");
+        console.info.println("                            -resume skips docroots checked ok by a previous run if their indexes did not change");
+        console.info.println("                            -md5 hashes files in parallel; files verified before are skipped if size and time did not change");
         console.info.println("global options");
         console.info.println("  '-await' seconds          how long to wait for a lock before giving up; default is 3600");
         console.info.println("  '-user' email             written to lock files to know who's currently holding the lock; defaults to unknown@all");
+        console.info.println("  '-timeout' seconds        how long 'direct' and 'fsck' wait for each host; default is 0 for no timeout");
     }
 
     @Override
@@ -107,6 +135,11 @@ public class Main extends Cli implements Command {
         printHelp();
     }
 
+    private Base served(Base command) {
+        command.setDaemon(daemon);
+        return command;
+    }
+
     private Net net() throws IOException {
         if (lazyNet == null) {
             lazyNet = lastConfig ? properties.loadLastNet() : properties.loadNet();
@@ -78,8 +78,10 @@ public class Svn extends Base {
         cache = properties.lockedCache(await, user);
         try {
             module = moduleConfig.create(cache, true, properties.svnUsername, properties.svnPassword, null);
-            try (Pool pool = pool()) {
+            try (Pool pool = pool(true)) {
                 distributor = target.open(pool, directory + ".idx");
+                distributor.setBatch(properties.uploadBatch, properties.uploadGzip);
+                distributor.setGcGrace(properties.gcGrace);
                 changed = module.publish(distributor);
                 index = distributor.close();
                 module.saveCaches();
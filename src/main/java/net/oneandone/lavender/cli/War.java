@@ -23,8 +23,11 @@ import net.oneandone.lavender.config.Pool;
 import net.oneandone.lavender.config.Properties;
 import net.oneandone.lavender.config.Target;
 import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.lavender.modules.MemoryBudget;
 import net.oneandone.sushi.cli.ArgumentException;
 import net.oneandone.sushi.cli.Console;
+import net.oneandone.sushi.cli.Option;
 import net.oneandone.sushi.cli.Remaining;
 import net.oneandone.sushi.cli.Value;
 import net.oneandone.sushi.fs.file.FileNode;
@@ -42,6 +45,10 @@ public class War extends Base {
     @Value(name = "idxName", position = 2)
     private String indexName;
 
+    /** skip uploads recorded by a previous publish of this war that did not finish */
+    @Option("resume")
+    private boolean resume;
+
     private final Map<String, Target> targets = new HashMap<>();
     private String nodes;
 
@@ -85,6 +92,8 @@ public class War extends Base {
     public void invoke() throws IOException, SAXException, XmlException {
         FileNode tmp;
         FileNode cache;
+        FileNode hashesFile;
+        Md5Cache hashes;
         FileNode outputNodesFile;
         WarEngine engine;
         Map<String, Distributor> distributors;
@@ -98,12 +107,17 @@ public class War extends Base {
         war.checkFile();
         tmp = war.getWorld().getTemp();
         outputNodesFile = tmp.createTempFile();
-        try (Pool pool = pool()) {
+        try (Pool pool = pool(true)) {
             distributors = distributors(pool);
             cache = properties.lockedCache(await, user);
             try {
-                engine = new WarEngine(cache, distributors, indexName, properties.svnUsername, properties.svnPassword,
-                        war, outputNodesFile, nodes);
+                for (Distributor distributor : distributors.values()) {
+                    distributor.setProgress(cache, resume);
+                }
+                hashesFile = WarEngine.hashesFile(cache, indexName);
+                hashes = daemon == null ? Md5Cache.load(hashesFile) : daemon.md5Cache(hashesFile);
+                engine = new WarEngine(cache, hashes, new MemoryBudget(properties.memoryBudget), distributors, indexName,
+                        properties.svnUsername, properties.svnPassword, war, outputNodesFile, nodes);
                 engine.run();
             } finally {
                 properties.unlockCache();
@@ -114,10 +128,15 @@ public class War extends Base {
 
     private Map<String, Distributor> distributors(Pool pool) throws IOException {
         Map<String, Distributor> result;
+        Distributor distributor;
 
         result = new HashMap<>();
         for (Map.Entry<String, Target> entry : targets.entrySet()) {
-            result.put(entry.getKey(), entry.getValue().open(pool, indexName));
+            distributor = entry.getValue().open(pool, indexName);
+            distributor.setBatch(properties.uploadBatch, properties.uploadGzip);
+            distributor.setDedup(properties.dedup);
+            distributor.setGcGrace(properties.gcGrace);
+            result.put(entry.getKey(), distributor);
         }
         return result;
     }
@@ -22,7 +22,10 @@ import net.oneandone.lavender.filter.Lavender;
 import net.oneandone.lavender.index.Distributor;
 import net.oneandone.lavender.index.Index;
 import net.oneandone.lavender.modules.DefaultModule;
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.lavender.modules.MemoryBudget;
 import net.oneandone.lavender.modules.Module;
+import net.oneandone.lavender.modules.Publisher;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.file.FileNode;
 import net.oneandone.sushi.xml.XmlException;
@@ -46,6 +49,8 @@ public class WarEngine {
     private static final Logger LOG = LoggerFactory.getLogger(WarEngine.class);
 
     private final FileNode cache;
+    private final Md5Cache hashes;
+    private final MemoryBudget budget;
     /** maps type to Distributor */
     private final Map<String, Distributor> distributors;
     private final String indexName;
@@ -55,9 +60,12 @@ public class WarEngine {
     private final FileNode outputNodesFile;
     private final String nodes;
 
-    public WarEngine(FileNode cache, Map<String, Distributor> distributors, String indexName, String svnUsername, String svnPassword,
-                     FileNode war, FileNode outputNodesFile, String nodes) {
+    /** @param hashes md5 sums of the war files, see hashesFile */
+    public WarEngine(FileNode cache, Md5Cache hashes, MemoryBudget budget, Map<String, Distributor> distributors, String indexName,
+                     String svnUsername, String svnPassword, FileNode war, FileNode outputNodesFile, String nodes) {
         this.cache = cache;
+        this.hashes = hashes;
+        this.budget = budget;
         this.distributors = distributors;
         this.indexName = indexName;
         this.svnUsername = svnUsername;
@@ -67,6 +75,10 @@ public class WarEngine {
         this.nodes = nodes;
     }
 
+    public static FileNode hashesFile(FileNode cache, String indexName) {
+        return cache.join("war_" + indexName + ".md5");
+    }
+
     /**
      * Lavendelizes the WAR file and publishes resources.
      *
@@ -74,7 +86,7 @@ public class WarEngine {
      */
     public Map<String, Index> run() throws IOException, XmlException, SAXException {
         long started;
-        List<Module> modules;
+        List<Module<?>> modules;
         Index index;
         long absolute;
         long changed;
@@ -82,7 +94,7 @@ public class WarEngine {
         long warStart;
 
         started = System.currentTimeMillis();
-        modules = DefaultModule.fromWebapp(cache, true, war.openZip(), svnUsername, svnPassword);
+        modules = DefaultModule.fromWar(cache, war, budget, hashes, svnUsername, svnPassword);
         absolute = 0;
         changed = extract(modules);
         result = new HashMap<>();
@@ -97,28 +109,16 @@ public class WarEngine {
         warStart = System.currentTimeMillis();
         updateWarFile(result.get(Docroot.WEB), outputNodesFile);
         LOG.info("updated war " + (war.length() / 1024) + "k, " + (System.currentTimeMillis() - warStart) + " ms");
-        for (Module module : modules) {
+        for (Module<?> module : modules) {
             module.saveCaches();
         }
+        hashes.retainTouched();
+        hashes.save();
         return result;
     }
 
-    public long extract(List<Module> modules) throws IOException {
-        Distributor distributor;
-        String type;
-        long changed;
-
-        changed = 0;
-        for (Module module : modules) {
-            type = module.getType();
-            distributor = distributors.get(type);
-            if (distributor == null) {
-                // nothing to do - this type is not published
-            } else {
-                changed += module.publish(distributor);
-            }
-        }
-        return changed;
+    public long extract(List<Module<?>> modules) throws IOException {
+        return Publisher.publish(modules, distributors);
     }
 
     /**
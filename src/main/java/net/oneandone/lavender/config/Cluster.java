@@ -97,24 +97,13 @@ public class Cluster {
         return this;
     }
 
-    public List<Connection> connect(Pool pool) throws IOException {
-        List<Connection> result;
-
-        result = new ArrayList<>();
-        for (Host host : hosts) {
-            try {
-                result.add(pool.connect(host));
-            } catch (IOException e) {
-                for (Connection connection : result) {
-                    try {
-                        connection.close();
-                    } catch (IOException suppressed) {
-                        e.addSuppressed(suppressed);
-                    }
-                }
-                throw e;
+    /** connects all hosts in parallel; connections are closed by the pool, also if some hosts failed */
+    public List<Connection> connect(final Pool pool) throws IOException {
+        return Parallel.run("connect", hosts, 0, new Parallel.Task<Host, Connection>() {
+            @Override
+            public Connection invoke(Host host) throws IOException {
+                return pool.connect(host);
             }
-        }
-        return result;
+        });
     }
 }
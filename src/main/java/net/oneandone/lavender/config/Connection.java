@@ -16,58 +16,131 @@
 package net.oneandone.lavender.config;
 
 import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.ssh.SshRoot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
-/** Node and optionally lock on a host. */
+/** Node and optionally lock on a host. Can have additional sessions, to access the host concurrently. */
 public class Connection implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(Connection.class);
 
+    /** first delay when waiting for a lock, doubled up to MAX_DELAY */
+    private static final long MIN_DELAY = 100;
+
+    private static final long MAX_DELAY = 5000;
+
     public static Connection openLocked(Host host, Node root, String lockPath, String lockContent, int wait) throws IOException {
+        Connection result;
+
+        result = new Connection(host, root, null);
+        result.lock(lockPath, lockContent, wait);
+        return result;
+    }
+
+    public static Connection openSimple(Host host, Node root) {
+        return new Connection(host, root, null);
+    }
+
+    //--
+
+    private final Host host;
+    private final Node root;
+    /** null if not locked */
+    private Node lock;
+    /** root node of every session, starting with root */
+    private final List<Node> sessions;
+    /** sessions not checked out */
+    private final BlockingQueue<Node> idle;
+
+    public Connection(Host host, Node root, Node lock) {
+        this.host = host;
+        this.root = root;
+        this.lock = lock;
+        this.sessions = new ArrayList<>();
+        this.idle = new LinkedBlockingQueue<>();
+        addSession(root);
+    }
+
+    /** do not call directly, sessions are added by Host.connect */
+    public void addSession(Node sessionRoot) {
+        sessions.add(sessionRoot);
+        idle.add(sessionRoot);
+    }
+
+    /**
+     * Creates the lock file. While it exists, retries with exponential backoff; the random part of the delay keeps
+     * concurrent waiters from retrying at the same time.
+     *
+     * @param wait seconds to wait for the lock
+     */
+    public void lock(String lockPath, String lockContent, int wait) throws IOException {
         Node lockfile;
-        int seconds;
+        long started;
+        long elapsed;
+        long delay;
+        long logged;
 
+        if (lock != null) {
+            throw new IllegalStateException("already locked: " + lock);
+        }
         lockfile = root.join(lockPath);
-        seconds = 0;
+        started = System.currentTimeMillis();
+        delay = MIN_DELAY;
+        logged = -1;
         while (true) {
             try {
                 lockfile.mkfile();
                 break;
             } catch (IOException e) {
-                if (seconds >= wait) {
+                elapsed = System.currentTimeMillis() - started;
+                if (elapsed >= wait * 1000L) {
                     throw e;
                 }
-                if (seconds % 10 == 0) {
-                    LOG.info("waiting for lock " + lockfile + ", seconds=" + seconds);
+                if (elapsed / 10000 != logged) {
+                    logged = elapsed / 10000;
+                    LOG.info("waiting for lock " + lockfile + ", seconds=" + elapsed / 1000);
                 }
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(Math.min(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1), wait * 1000L - elapsed));
                 } catch (InterruptedException e1) {
-                    // fall-through
+                    throw new IOException(host + ": interrupted while waiting for lock", e1);
                 }
-                seconds++;
+                delay = Math.min(delay * 2, MAX_DELAY);
             }
         }
         lockfile.writeString(lockContent);
-        return new Connection(host, root, lockfile);
+        lock = lockfile;
     }
 
-    public static Connection openSimple(Host host, Node root) {
-        return new Connection(host, root, null);
+    public boolean isLocked() {
+        return lock != null;
     }
 
-    //--
-
-    private final Host host;
-    private final Node root;
-    private final Node lock;
+    public void unlock() throws IOException {
+        if (lock != null) {
+            lock.deleteFile();
+            lock = null;
+        }
+    }
 
-    public Connection(Host host, Node root, Node lock) {
-        this.host = host;
-        this.root = root;
-        this.lock = lock;
+    /** @return false if a session does not respond */
+    public boolean isAlive() {
+        for (Node session : sessions) {
+            try {
+                session.exists();
+            } catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public Host getHost() {
@@ -78,9 +151,37 @@ public class Connection implements AutoCloseable {
         return root.join(names);
     }
 
+    /** @return root nodes of all sessions; the first is the node joined by this connection */
+    public List<Node> sessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /** Blocks until a session is available. Return it with checkin. */
+    public Node checkout() throws IOException {
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            throw new IOException(host + ": interrupted while waiting for session", e);
+        }
+    }
+
+    public void checkin(Node sessionRoot) {
+        idle.add(sessionRoot);
+    }
+
+    public String toString() {
+        return host.toString();
+    }
+
     public void close() throws IOException {
-        if (lock != null) {
-            lock.deleteFile();
+        try {
+            unlock();
+        } finally {
+            for (Node session : sessions.subList(1, sessions.size())) {
+                if (session.getRoot() instanceof SshRoot) {
+                    ((SshRoot) session.getRoot()).close();
+                }
+            }
         }
     }
 }
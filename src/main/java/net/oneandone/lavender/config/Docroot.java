@@ -16,8 +16,6 @@
 package net.oneandone.lavender.config;
 
 import net.oneandone.sushi.cli.ArgumentException;
-import net.oneandone.sushi.fs.DirectoryNotFoundException;
-import net.oneandone.sushi.fs.ListException;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.metadata.annotation.Sequence;
 import net.oneandone.sushi.metadata.annotation.Type;
@@ -25,7 +23,6 @@ import net.oneandone.sushi.metadata.annotation.Value;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
 /** Where on a host to store files */
@@ -114,22 +111,23 @@ public class Docroot {
         return connection.join(docroot);
     }
 
+    /** @return docroot node in every session of the connection, starting with node(connection) */
+    public List<Node> nodes(Connection connection) {
+        List<Node> result;
+
+        result = new ArrayList<>();
+        for (Node session : connection.sessions()) {
+            result.add(session.join(docroot));
+        }
+        return result;
+    }
+
     public Node index(Connection connection, String indexName) {
         return connection.join(indexes, indexName);
     }
 
-    /** @return all indexes without the all index */
-    public List<? extends Node> indexList(Connection connection) throws ListException, DirectoryNotFoundException {
-        List<? extends Node> result;
-        Iterator<? extends Node> iter;
-
-        result = connection.join(indexes).list();
-        iter = result.iterator();
-        while (iter.hasNext()) {
-            if (iter.next().getName().startsWith(".")) {
-                iter.remove();
-            }
-        }
-        return result;
+    /** @return directory with the indexes, see Generation */
+    public Node indexes(Connection connection) {
+        return connection.join(indexes);
     }
 }
@@ -28,6 +28,9 @@ import java.net.UnknownHostException;
 
 @Type
 public class Host {
+    /** lock file, relative to the root of the host */
+    public static final String LOCK = "tmp/lavender.lock";
+
     public static Host localhost(FileNode basedir) throws UnknownHostException {
         return new Host(InetAddress.getLocalHost().getHostName(), null, basedir.getURI().toString());
     }
@@ -77,10 +80,34 @@ public class Host {
         this.uri = uri;
     }
 
-    /** do not call directly, use pool.connect instead. */
-    public Connection connect(World world, String lockContent, int wait) throws IOException {
+    /**
+     * do not call directly, use pool.connect instead.
+     *
+     * @param sessions number of sessions to open; additional sessions are not locked separately
+     */
+    public Connection connect(World world, String lockContent, int wait, int sessions) throws IOException {
         Node node;
+        Connection result;
+
+        node = open(world);
+        result = lockContent == null ? Connection.openSimple(this, node) : Connection.openLocked(this, node, LOCK, lockContent, wait);
+        try {
+            for (int i = 1; i < sessions; i++) {
+                result.addSession(open(world));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                result.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return result;
+    }
 
+    /** @return root node in a new session */
+    private Node open(World world) throws IOException {
         if (login == null && uri == null) {
             throw new IllegalStateException("missing login or uri");
         }
@@ -89,11 +116,10 @@ public class Host {
         }
 
         if (login != null) {
-            node = world.validNode("ssh://" + login + "@" + name);
+            return world.validNode("ssh://" + login + "@" + name);
         } else {
-            node = world.validNode(uri);
+            return world.validNode(uri);
         }
-        return lockContent == null ? Connection.openSimple(this, node) : Connection.openLocked(this, node, "tmp/lavender.lock", lockContent, wait);
     }
 
     public String toString() {
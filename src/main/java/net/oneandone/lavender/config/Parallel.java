@@ -0,0 +1,114 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Runs a task for every host of a cluster - or for every connection - in parallel. */
+public class Parallel {
+    public interface Task<I, R> {
+        R invoke(I item) throws Exception;
+    }
+
+    /**
+     * @param what describes the task for error messages
+     * @param timeout seconds per item, 0 for no timeout
+     * @return results in the order of items
+     * @throws IOException if the task failed or timed out for an item. Failures of multiple items are reported as suppressed exceptions.
+     */
+    public static <I, R> List<R> run(final String what, List<I> items, int timeout, final Task<I, R> task) throws IOException {
+        ExecutorService executor;
+        List<Future<R>> futures;
+        List<R> result;
+        List<IOException> failures;
+        long deadline;
+        Future<R> future;
+        IOException e;
+
+        result = new ArrayList<>(items.size());
+        if (items.isEmpty()) {
+            return result;
+        }
+        executor = Executors.newFixedThreadPool(items.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread;
+
+                thread = new Thread(runnable, what);
+                // a hanging host must not block jvm termination
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        failures = new ArrayList<>();
+        try {
+            futures = new ArrayList<>(items.size());
+            for (final I item : items) {
+                futures.add(executor.submit(new Callable<R>() {
+                    @Override
+                    public R call() throws Exception {
+                        return task.invoke(item);
+                    }
+                }));
+            }
+            deadline = System.currentTimeMillis() + timeout * 1000L;
+            for (int i = 0; i < futures.size(); i++) {
+                future = futures.get(i);
+                try {
+                    if (timeout == 0) {
+                        result.add(future.get());
+                    } else {
+                        result.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+                    }
+                } catch (InterruptedException cause) {
+                    throw new IOException(what + " interrupted", cause);
+                } catch (TimeoutException cause) {
+                    future.cancel(true);
+                    failures.add(new IOException(items.get(i) + ": " + what + " timed out after " + timeout + " seconds"));
+                } catch (ExecutionException cause) {
+                    if (cause.getCause() instanceof IOException) {
+                        failures.add((IOException) cause.getCause());
+                    } else {
+                        failures.add(new IOException(items.get(i) + ": " + what + " failed: " + cause.getCause().getMessage(), cause.getCause()));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        }
+        if (!failures.isEmpty()) {
+            e = new IOException(what + " failed for " + failures.size() + " of " + items.size() + " hosts");
+            for (IOException failure : failures) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+        return result;
+    }
+}
@@ -15,56 +15,221 @@
  */
 package net.oneandone.lavender.config;
 
+import net.oneandone.lavender.index.IndexCache;
 import net.oneandone.sushi.fs.World;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Manages connections.
+ * Manages connections. Thread-safe; different hosts are connected in parallel. Connections are locked when connecting,
+ * unless the pool is optimistic: then, callers lock only while modifying shared state, e.g. when committing indexes.
+ * A pool can be kept open for many commands, see retain.
  */
 public class Pool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Pool.class);
+
     private final World world;
     private final String lockContent;
     /** seconds to wait for a lock */
     private final int wait;
-    private final List<Connection> connections;
+    /** sessions per host */
+    private final int sessions;
+    /** true to connect without lock; connections are locked explicitly, see lock */
+    private final boolean optimistic;
+    /** identity of hosts; ordered, to close them in the order they were opened */
+    private final Map<Host, Connection> connections;
+    private final Set<Host> connecting;
+    /** connections are closed when the last user closes the pool */
+    private int users;
+    /** null to load indexes every time */
+    private IndexCache indexCache;
 
     public Pool(World world, String lockContent, int wait) {
+        this(world, lockContent, wait, 1);
+    }
+
+    public Pool(World world, String lockContent, int wait, int sessions) {
+        this(world, lockContent, wait, sessions, false);
+    }
+
+    public Pool(World world, String lockContent, int wait, int sessions, boolean optimistic) {
+        if (sessions < 1) {
+            throw new IllegalArgumentException("sessions: " + sessions);
+        }
         this.world = world;
         this.lockContent = lockContent;
         this.wait = wait;
-        this.connections = new ArrayList<>();
+        this.sessions = sessions;
+        this.optimistic = optimistic;
+        this.connections = new LinkedHashMap<>();
+        this.connecting = new HashSet<>();
+        this.users = 1;
+        this.indexCache = null;
+    }
+
+    /**
+     * Adds a user, e.g. for a command run by a daemon. Closing the pool releases the locks of all connections, so
+     * users must not run concurrently; the connections are closed when the last user closes the pool.
+     */
+    public synchronized Pool retain() {
+        if (users == 0) {
+            throw new IllegalStateException("closed");
+        }
+        users++;
+        return this;
+    }
+
+    /** @param indexCache to share indexes loaded through this pool; null to load them every time */
+    public synchronized void setIndexCache(IndexCache indexCache) {
+        this.indexCache = indexCache;
+    }
+
+    /** @return null if indexes are not cached */
+    public synchronized IndexCache getIndexCache() {
+        return indexCache;
     }
 
     public Connection connect(Host host) throws IOException {
         Connection result;
 
-        result = lookup(host);
-        if (result == null) {
-            result = host.connect(world, lockContent, wait);
-            connections.add(result);
+        synchronized (this) {
+            while (connecting.contains(host)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(host + ": interrupted while waiting for connection", e);
+                }
+            }
+            result = connections.get(host);
+            if (result != null) {
+                return result;
+            }
+            connecting.add(host);
+        }
+        // connect without holding the monitor - it might wait for a lock
+        try {
+            result = host.connect(world, optimistic ? null : lockContent, wait, sessions);
+        } finally {
+            synchronized (this) {
+                connecting.remove(host);
+                if (result != null) {
+                    connections.put(host, result);
+                }
+                notifyAll();
+            }
         }
         return result;
     }
 
-    public Connection lookup(Host host) {
-        for (Connection connection : connections) {
-            if (host == connection.getHost()) {
-                return connection;
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * Locks connections of an optimistic pool, in the order specified. Does nothing if the pool locks when connecting,
+     * or doesn't lock at all.
+     */
+    public void lock(List<Connection> lst) throws IOException {
+        List<Connection> locked;
+
+        if (!optimistic || lockContent == null) {
+            return;
+        }
+        locked = new ArrayList<>();
+        try {
+            for (Connection connection : lst) {
+                connection.lock(Host.LOCK, lockContent, wait);
+                locked.add(connection);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                unlock(locked);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /** Releases locks taken by lock. */
+    public void unlock(List<Connection> lst) throws IOException {
+        IOException e;
+
+        if (!optimistic) {
+            return;
+        }
+        e = new IOException("cannot unlock connections");
+        for (Connection connection : lst) {
+            try {
+                connection.unlock();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+        }
+        if (e.getSuppressed().length > 0) {
+            throw e;
+        }
+    }
+
+    public synchronized Connection lookup(Host host) {
+        return connections.get(host);
+    }
+
+    /** Closes connections that don't respond, so they are opened again by the next connect. For pools kept open. */
+    public void dropBroken() throws IOException {
+        List<Connection> all;
+        List<Boolean> alive;
+        Connection connection;
+
+        synchronized (this) {
+            all = new ArrayList<>(connections.values());
+        }
+        alive = Parallel.run("probe", all, 0, new Parallel.Task<Connection, Boolean>() {
+            @Override
+            public Boolean invoke(Connection connection) {
+                return connection.isAlive();
+            }
+        });
+        for (int i = 0; i < all.size(); i++) {
+            if (!alive.get(i)) {
+                connection = all.get(i);
+                synchronized (this) {
+                    connections.remove(connection.getHost());
+                }
+                LOG.info(connection + ": connection broken, reconnecting");
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    LOG.warn(connection + ": cannot close broken connection: " + e.getMessage(), e);
+                }
             }
         }
-        return null;
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         IOException e;
 
+        if (users == 0) {
+            return;
+        }
+        users--;
         e = new IOException("cannot close connections");
-        for (Connection connection : connections) {
+        for (Connection connection : connections.values()) {
             try {
-                connection.close();
+                if (users > 0) {
+                    // locks left by a failed command
+                    connection.unlock();
+                } else {
+                    connection.close();
+                }
             } catch (IOException suppressed) {
                 e.addSuppressed(suppressed);
             }
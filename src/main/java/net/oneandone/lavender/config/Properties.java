@@ -15,6 +15,8 @@
  */
 package net.oneandone.lavender.config;
 
+import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.modules.MemoryBudget;
 import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
@@ -79,6 +81,10 @@ public class Properties {
         List<Node> sshKeys;
         String cache;
         FileNode cacheNode;
+        long memoryBudget;
+        int uploadBatch;
+        int sshSessions;
+        int gcGrace;
 
         properties = file.readProperties();
         sshKeys = new ArrayList<>();
@@ -93,14 +99,47 @@ public class Properties {
         } else {
             cacheNode = file.getWorld().file(cache);
         }
+        memoryBudget = intProperty(file, properties, "memoryBudget", "megabytes", (int) (MemoryBudget.DEFAULT / MB), 0) * MB;
+        uploadBatch = intProperty(file, properties, "uploadBatch", "number of files", 0, 0);
+        gcGrace = intProperty(file, properties, "gcGrace", "minutes", Distributor.GC_GRACE_MINUTES, Integer.MIN_VALUE);
+        if (gcGrace >= 0 && gcGrace < Distributor.GC_GRACE_MIN_MINUTES) {
+            throw new IOException("invalid properties file " + file + ": gcGrace: negative or at least "
+                    + Distributor.GC_GRACE_MIN_MINUTES + " minutes expected, got " + gcGrace);
+        }
+        sshSessions = intProperty(file, properties, "sshSessions", "number", 1, 1);
         try {
-            return new Properties(file.getWorld(), cacheNode,
-                    new URI(properties.getProperty("svn")), properties.getProperty("svn.username"), properties.getProperty("svn.password"), sshKeys);
+            return new Properties(file.getWorld(), cacheNode, new URI(properties.getProperty("svn")),
+                    properties.getProperty("svn.username"), properties.getProperty("svn.password"), sshKeys, memoryBudget,
+                    uploadBatch, Boolean.parseBoolean(properties.getProperty("uploadGzip")), sshSessions,
+                    Boolean.parseBoolean(properties.getProperty("dedup")), gcGrace);
         } catch (URISyntaxException e) {
             throw new IOException("invalid properties file " + file + ": " + e.getMessage(), e);
         }
     }
 
+    private static final long MB = 1024 * 1024;
+
+    /** @return dflt if the property is not defined */
+    private static int intProperty(Node file, java.util.Properties properties, String key, String unit, int dflt, int min)
+            throws IOException {
+        String str;
+        int result;
+
+        str = properties.getProperty(key);
+        if (str == null) {
+            return dflt;
+        }
+        try {
+            result = Integer.parseInt(str.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid properties file " + file + ": " + key + ": " + unit + " expected, got " + str);
+        }
+        if (result < min) {
+            throw new IOException("invalid properties file " + file + ": " + key + ": at least " + min + " expected, got " + str);
+        }
+        return result;
+    }
+
     //--
 
     public final World world;
@@ -110,14 +149,33 @@ public class Properties {
     public final String svnUsername;
     public final String svnPassword;
     private final List<Node> sshKeys;
+    /** bytes of heap to buffer jars when publishing wars */
+    public final long memoryBudget;
+    /** max number of files uploaded with one tar stream; 0 to upload files separately */
+    public final int uploadBatch;
+    /** whether to compress tar streams */
+    public final boolean uploadGzip;
+    /** ssh sessions per host */
+    public final int sshSessions;
+    /** whether equal files of different modules share one content-addressed path */
+    public final boolean dedup;
+    /** minutes to keep unreferenced files, at least Distributor.GC_GRACE_MIN_MINUTES; negative to keep them until fsck -gc */
+    public final int gcGrace;
 
-    public Properties(World world, FileNode cache, URI svn, String svnUsername, String svnPassword, List<Node> sshKeys) {
+    public Properties(World world, FileNode cache, URI svn, String svnUsername, String svnPassword, List<Node> sshKeys, long memoryBudget,
+                      int uploadBatch, boolean uploadGzip, int sshSessions, boolean dedup, int gcGrace) {
         this.world = world;
         this.cache = cache;
         this.svn = svn;
         this.svnUsername = svnUsername;
         this.svnPassword = svnPassword;
         this.sshKeys = sshKeys;
+        this.memoryBudget = memoryBudget;
+        this.uploadBatch = uploadBatch;
+        this.uploadGzip = uploadGzip;
+        this.sshSessions = sshSessions;
+        this.dedup = dedup;
+        this.gcGrace = gcGrace;
     }
 
     public void initTemp(FileNode temp) throws IOException {
@@ -148,7 +206,6 @@ public class Properties {
         SshFilesystem ssh;
 
         initTemp(temp());
-        world.getMemoryFilesystem().setMaxInMemorySize(Integer.MAX_VALUE);
         world.getFilesystem("svn", SvnFilesystem.class).setDefaultCredentials(svnUsername, svnPassword);
         if (withSsh) {
             ssh = world.getFilesystem("ssh", SshFilesystem.class);
@@ -184,6 +241,15 @@ public class Properties {
         return (FileNode) world.getHome().join(".lavender.net.xml");
     }
 
+    /**
+     * For files that are private to a command and cluster, so commands don't have to wait for the lock.
+     * CAUTION: place files directly in this directory - sub directories would cause permission problems.
+     */
+    public FileNode unlockedCache() throws IOException {
+        cache.mkdirsOpt();
+        return cache;
+    }
+
     public FileNode lockedCache(int wait, String lockContent) throws IOException {
         cache.mkdirsOpt();
         doLock(wait, lockContent);
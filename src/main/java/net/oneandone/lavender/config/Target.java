@@ -31,6 +31,6 @@ public class Target {
     }
 
     public Distributor open(Pool pool, String indexName) throws IOException {
-        return Distributor.open(cluster.connect(pool), docroot, indexName);
+        return Distributor.open(pool, cluster.connect(pool), docroot, indexName);
     }
 }
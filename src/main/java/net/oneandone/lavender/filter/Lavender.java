@@ -71,7 +71,7 @@ public class Lavender implements Filter, LavenderMBean {
 
     protected ProcessorFactory processorFactory;
 
-    protected List<Module> develModules;
+    protected List<Module<?>> develModules;
 
     @Override
     public void init(FilterConfig config) throws ServletException {
@@ -177,7 +177,7 @@ public class Lavender implements Filter, LavenderMBean {
         Resource resource;
 
         // lookup cached stuff first
-        for (Module module : develModules) {
+        for (Module<?> module : develModules) {
             if (module.hasFiles()) {
                 resource = module.probe(resourcePath);
                 if (resource != null) {
@@ -189,7 +189,7 @@ public class Lavender implements Filter, LavenderMBean {
                 }
             }
         }
-        for (Module module : develModules) {
+        for (Module<?> module : develModules) {
             if (module.matches(resourcePath) != null) {
                 module.softInvalidate();
                 resource = module.probe(resourcePath);
@@ -275,7 +275,7 @@ public class Lavender implements Filter, LavenderMBean {
     @Override
     public void destroy() {
         if (develModules != null) {
-            for (Module module : develModules) {
+            for (Module<?> module : develModules) {
                 try {
                     module.saveCaches();
                 } catch (IOException e) {
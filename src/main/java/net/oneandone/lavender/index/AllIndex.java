@@ -0,0 +1,262 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.modules.Resource;
+import net.oneandone.sushi.fs.Node;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reference counts of all files in a docroot, split into shards. Lavendelized paths start with a directory named after
+ * the first md5 characters; the first two of them select the shard. Other paths are sharded by the md5 of the path.
+ *
+ * Shards are stored as indexes named .all/xx.idx in a generation. They're loaded on first access, and only modified
+ * shards are saved. An old single-file .all.idx is split when loading a generation without manifest.
+ */
+public class AllIndex {
+    /** name of the shard directory in a generation */
+    public static final String DIR = ".all";
+
+    private static final String PREFIX = DIR + "/";
+
+    private static final String SUFFIX = ".idx";
+
+    private static final int SHARD_CHARS = 2;
+
+    public static AllIndex load(Generation generation) throws IOException {
+        AllIndex result;
+        Node legacy;
+
+        result = new AllIndex(generation);
+        for (String name : generation.names()) {
+            if (name.startsWith(PREFIX)) {
+                result.digests.put(name.substring(PREFIX.length()), generation.digest(name));
+            }
+        }
+        if (generation.isLegacy()) {
+            legacy = generation.getDir().join(Index.ALL_IDX);
+            // a directory once the docroot is migrated
+            if (legacy.isFile()) {
+                for (Label label : Index.load(legacy)) {
+                    // the lavendelized path of a reference-counted label is the count, so adding it copies the entry as is
+                    result.shardOf(label.getOriginalPath()).add(label);
+                }
+                for (Map.Entry<String, Index> entry : result.shards.entrySet()) {
+                    result.digests.put(entry.getKey(), Generation.digest(entry.getValue()));
+                }
+            }
+        }
+        return result;
+    }
+
+    public static String shardName(String path) {
+        String prefix;
+
+        prefix = path.length() > 3 && path.charAt(3) == '/' ? path.substring(0, 3) : "";
+        if (!isHex(prefix)) {
+            prefix = Hex.encodeString(Resource.md5(path.getBytes(StandardCharsets.UTF_8)));
+        }
+        return prefix.substring(0, SHARD_CHARS) + SUFFIX;
+    }
+
+    private static boolean isHex(String str) {
+        char c;
+
+        if (str.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            c = str.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //--
+
+    /** where to load shards from; null if all shards are loaded */
+    private final Generation generation;
+    /** digests of the saved shards, by shard name */
+    private final Map<String, String> digests;
+    private final Map<String, Index> shards;
+    private final Set<String> dirty;
+    /** modified shards as loaded, to compute journal records */
+    private final Map<String, Index> originals;
+
+    /** empty index */
+    public AllIndex() {
+        this(null);
+    }
+
+    private AllIndex(Generation generation) {
+        this.generation = generation;
+        this.digests = new HashMap<>();
+        this.shards = new HashMap<>();
+        this.dirty = new HashSet<>();
+        this.originals = new HashMap<>();
+    }
+
+    /** @return copy to modify; shards are copied on first modification, so this index is not affected */
+    AllIndex copy() {
+        AllIndex result;
+
+        result = new AllIndex(generation);
+        result.digests.putAll(digests);
+        result.shards.putAll(shards);
+        for (String name : dirty) {
+            result.shards.put(name, shards.get(name).copy());
+        }
+        result.dirty.addAll(dirty);
+        result.originals.putAll(originals);
+        return result;
+    }
+
+    //-- Index with reference counts
+
+    public Label lookup(String path) throws IOException {
+        return shardOf(path).lookup(path);
+    }
+
+    public void addReference(String path, byte[] md5) throws IOException {
+        modify(path).addReference(path, md5);
+    }
+
+    public boolean removeReferenceOpt(String path) throws IOException {
+        return modify(path).removeReferenceOpt(path);
+    }
+
+    private Index modify(String path) throws IOException {
+        String name;
+        Index shard;
+
+        name = shardName(path);
+        shard = shard(name);
+        if (dirty.add(name)) {
+            originals.put(name, shard);
+            shard = shard.copy();
+            shards.put(name, shard);
+        }
+        return shard;
+    }
+
+    /** @return all shards merged into one index */
+    public Index toIndex() throws IOException {
+        Index result;
+
+        result = new Index();
+        for (String name : names()) {
+            for (Label label : shard(name)) {
+                result.add(label);
+            }
+        }
+        return result;
+    }
+
+    private Index shardOf(String path) throws IOException {
+        return shard(shardName(path));
+    }
+
+    /** @throws IOException if the loaded shard does not match its digest */
+    private Index shard(String name) throws IOException {
+        Index result;
+
+        result = shards.get(name);
+        if (result == null) {
+            if (generation != null && digests.containsKey(name)) {
+                result = generation.load(PREFIX + name);
+            } else {
+                result = new Index();
+            }
+            shards.put(name, result);
+        }
+        return result;
+    }
+
+    private Set<String> names() {
+        Set<String> result;
+
+        result = new TreeSet<>(digests.keySet());
+        result.addAll(shards.keySet());
+        return result;
+    }
+
+    //--
+
+    /** Compares with the all index of another host. May be called by multiple threads. */
+    public void check(Generation other) throws IOException {
+        AllIndex loaded;
+        Set<String> names;
+
+        loaded = load(other);
+        names = new HashSet<>(digests.keySet());
+        names.addAll(loaded.digests.keySet());
+        for (String name : names) {
+            if (!Objects.equals(digests.get(name), loaded.digests.get(name))) {
+                throw new IOException("index mismatch: " + other.getDir().join(PREFIX + name).getURI());
+            }
+        }
+    }
+
+    /** @return true if the generation still has the shards this index was loaded with */
+    public boolean unchanged(Generation other) throws IOException {
+        return digests.equals(load(other).digests);
+    }
+
+    /**
+     * Prepares the next generation: the digest of every shard, the modified shards, and the journal blocks of modified
+     * shards that don't need compaction. All maps are keyed by index names in the generation.
+     *
+     * @param digests receives null for shards that became empty
+     */
+    void save(Map<String, String> digests, Map<String, Index> indexes, Map<String, Generation.Journal> journals) throws IOException {
+        Index shard;
+        Index original;
+        List<String> records;
+
+        for (String name : names()) {
+            if (!dirty.contains(name)) {
+                digests.put(PREFIX + name, this.digests.get(name));
+                continue;
+            }
+            shard = shard(name);
+            digests.put(PREFIX + name, Generation.digest(shard));
+            indexes.put(PREFIX + name, shard);
+            original = originals.get(name);
+            if (original != null && shard.size() > 0) {
+                records = shard.delta(original);
+                if (original.appendable(records.size())) {
+                    journals.put(PREFIX + name, Generation.Journal.create(original, records));
+                }
+            }
+        }
+    }
+
+    /** @param name index name in the generation */
+    Index load(String name) throws IOException {
+        return shard(name.substring(PREFIX.length()));
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.modules.Resource;
+import net.oneandone.sushi.fs.Node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads many files with a single remote command instead of one sftp round trip per file: a tar stream is unpacked
+ * into a staging directory in the docroot, checked against the md5 sums of the labels and then moved into place. Files
+ * are moved only if the whole batch verified. Needs a shell with tar and md5sum on the host.
+ */
+public class Batch {
+    /** @return null if the docroot does not support batches */
+    public static Batch createOpt(Node docroot, int maxFiles, boolean gzip) {
+        Shell shell;
+
+        shell = Shell.createOpt(docroot);
+        return shell == null ? null : new Batch(shell, maxFiles, gzip);
+    }
+
+    /** uncompressed bytes per batch */
+    public static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final String MANIFEST = ".lavender-batch.md5";
+
+    private static final int BLOCK = 512;
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    //--
+
+    private final Shell shell;
+    private final int maxFiles;
+    private final boolean gzip;
+    private final List<Item> items;
+    private long bytes;
+
+    private Batch(Shell shell, int maxFiles, boolean gzip) {
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("maxFiles: " + maxFiles);
+        }
+        this.shell = shell;
+        this.maxFiles = maxFiles;
+        this.gzip = gzip;
+        this.items = new ArrayList<>();
+        this.bytes = 0;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean isFull() {
+        return items.size() >= maxFiles || bytes >= MAX_BYTES;
+    }
+
+    /** @return false if the file cannot be batched and has to be uploaded separately */
+    public boolean add(String path, byte[] md5, Resource resource) throws IOException {
+        if (MANIFEST.equals(path) || path.indexOf('\n') != -1 || path.indexOf('\\') != -1 || split(path) == -2) {
+            return false;
+        }
+        items.add(new Item(path, md5, resource, resource.getSize()));
+        bytes += resource.getSize();
+        return true;
+    }
+
+    /** uploads and empties the batch */
+    public void flush() throws IOException {
+        if (items.isEmpty()) {
+            return;
+        }
+        try {
+            shell.exec("batch upload", script(), new Shell.Input() {
+                @Override
+                public void write(OutputStream dest) throws IOException {
+                    writeTar(dest);
+                }
+            });
+        } finally {
+            items.clear();
+            bytes = 0;
+        }
+    }
+
+    private String script() {
+        return "set -e\n"
+                // for error messages
+                + "exec >&2\n"
+                + "mkdir -p " + Shell.quote(shell.directory) + "\n"
+                + "cd " + Shell.quote(shell.directory) + "\n"
+                + "staging=\"$(pwd)/.lavender-batch-" + UUID.randomUUID() + "\"\n"
+                + "mkdir \"$staging\"\n"
+                + "trap 'rm -rf \"$staging\"' EXIT\n"
+                + "tar -x" + (gzip ? "z" : "") + "f - -C \"$staging\"\n"
+                + "cd \"$staging\"\n"
+                + "md5sum -c --quiet " + MANIFEST + "\n"
+                + "sed 's/^[0-9a-f]*  //' " + MANIFEST + " | while IFS= read -r f; do\n"
+                // -- because paths might start with -
+                + "  mkdir -p -- \"../$(dirname -- \"$f\")\"\n"
+                + "  mv -f -- \"$f\" \"../$f\"\n"
+                + "done\n";
+    }
+
+    //-- tar stream
+
+    private void writeTar(OutputStream dest) throws IOException {
+        StringBuilder manifest;
+        byte[] bytes;
+        GZIPOutputStream zip;
+
+        zip = gzip ? new GZIPOutputStream(dest, 64 * 1024) : null;
+        if (zip != null) {
+            dest = zip;
+        }
+        manifest = new StringBuilder();
+        for (Item item : items) {
+            manifest.append(Hex.encodeString(item.md5)).append("  ").append(item.path).append('\n');
+        }
+        bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        header(dest, MANIFEST, bytes.length);
+        dest.write(bytes);
+        pad(dest, bytes.length);
+        for (Item item : items) {
+            header(dest, item.path, item.size);
+            try (InputStream src = item.resource.open()) {
+                copy(src, dest, item);
+            }
+            pad(dest, item.size);
+        }
+        // end of archive
+        dest.write(new byte[2 * BLOCK]);
+        if (zip != null) {
+            zip.finish();
+        }
+        dest.flush();
+    }
+
+    private static void copy(InputStream src, OutputStream dest, Item item) throws IOException {
+        byte[] buffer;
+        long remaining;
+        int count;
+
+        buffer = new byte[COPY_BUFFER];
+        remaining = item.size;
+        while (remaining > 0) {
+            count = src.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count == -1) {
+                throw new IOException(item.resource.getOrigin() + ": unexpected end of data, " + remaining + " bytes missing");
+            }
+            dest.write(buffer, 0, count);
+            remaining -= count;
+        }
+        if (src.read() != -1) {
+            throw new IOException(item.resource.getOrigin() + ": more data than the expected " + item.size + " bytes");
+        }
+    }
+
+    private static void pad(OutputStream dest, long size) throws IOException {
+        int rest;
+
+        rest = (int) (size % BLOCK);
+        if (rest != 0) {
+            dest.write(new byte[BLOCK - rest]);
+        }
+    }
+
+    /** ustar header for a regular file */
+    private static void header(OutputStream dest, String path, long size) throws IOException {
+        byte[] header;
+        byte[] name;
+        int idx;
+        long checksum;
+
+        header = new byte[BLOCK];
+        idx = split(path);
+        if (idx == -1) {
+            name = path.getBytes(StandardCharsets.UTF_8);
+        } else {
+            name = path.substring(idx + 1).getBytes(StandardCharsets.UTF_8);
+            put(header, 345, path.substring(0, idx).getBytes(StandardCharsets.UTF_8));
+        }
+        put(header, 0, name);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, System.currentTimeMillis() / 1000);
+        header[156] = '0';
+        put(header, 257, "ustar".getBytes(StandardCharsets.US_ASCII)); // followed by a 0 byte
+        header[263] = '0';
+        header[264] = '0';
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        dest.write(header);
+    }
+
+    /** @return -1 if the path fits into the name field, -2 if it does not fit into ustar at all, otherwise the separator index */
+    private static int split(String path) {
+        int length;
+        int idx;
+
+        length = path.getBytes(StandardCharsets.UTF_8).length;
+        if (length != path.length()) {
+            // not ascii: keep it simple
+            return length <= 100 ? -1 : -2;
+        }
+        if (length <= 100) {
+            return -1;
+        }
+        idx = path.lastIndexOf('/', 155);
+        if (idx <= 0 || length - idx - 1 > 100) {
+            return -2;
+        }
+        return idx;
+    }
+
+    private static void put(byte[] header, int ofs, byte[] bytes) {
+        System.arraycopy(bytes, 0, header, ofs, bytes.length);
+    }
+
+    /** zero-terminated */
+    private static void octal(byte[] header, int ofs, int length, long value) {
+        String str;
+
+        str = Long.toOctalString(value);
+        if (str.length() > length - 1) {
+            throw new IllegalArgumentException("value too large for tar header: " + value);
+        }
+        for (int i = 0; i < length - 1 - str.length(); i++) {
+            header[ofs + i] = '0';
+        }
+        put(header, ofs + length - 1 - str.length(), str.getBytes(StandardCharsets.US_ASCII));
+        header[ofs + length - 1] = 0;
+    }
+
+    private static class Item {
+        public final String path;
+        public final byte[] md5;
+        public final Resource resource;
+        public final long size;
+
+        public Item(String path, byte[] md5, Resource resource, long size) {
+            this.path = path;
+            this.md5 = md5;
+            this.resource = resource;
+            this.size = size;
+        }
+    }
+}
@@ -17,132 +17,1030 @@ package net.oneandone.lavender.index;
 
 import net.oneandone.lavender.config.Connection;
 import net.oneandone.lavender.config.Docroot;
+import net.oneandone.lavender.config.Parallel;
+import net.oneandone.lavender.config.Pool;
 import net.oneandone.lavender.modules.Resource;
 import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-/** Receives extracted files and uploads them */
+/** Receives extracted files and uploads them. Uploads to the individual hosts run in parallel, one worker per host. */
 public class Distributor {
     private static final Logger LOG = LoggerFactory.getLogger(Distributor.class);
 
+    /** max number of resources queued per host; bounds the memory held by resources not yet uploaded */
+    private static final int PENDING_UPLOADS = 64;
+
+    private static final int MKDIR_RETRIES = 10;
+
+    private static final int COMMIT_ATTEMPTS = 5;
+
+    /**
+     * Default for the minutes unreferenced files are kept by publishing and fsck -gc, because they might be uploaded
+     * by a publish that has not committed yet.
+     */
+    public static final int GC_GRACE_MINUTES = 60;
+
+    /**
+     * Shorter grace periods are rejected: index data files are written before waiting for the lock, which takes up
+     * to 10 minutes by default. Data files removed while waiting longer are written again.
+     */
+    public static final int GC_GRACE_MIN_MINUTES = 15;
+
+    /**
+     * Index of the paths whose last reference was removed. The original path is the docroot path, the lavendelized path
+     * the millis when the last reference was removed. Paths are removed from the docroots by the first publish after
+     * the grace period, unless they're referenced again.
+     */
+    public static final String TOMBSTONES = ".tombstones.idx";
+
     public static Distributor open(List<Connection> connections, Docroot docroot, String indexName) throws IOException {
-        Node destroot;
-        Node file;
+        return open(null, connections, docroot, indexName);
+    }
+
+    /**
+     * @param pool if optimistic, connections are locked for the commit only; null if connections are already locked
+     */
+    public static Distributor open(Pool pool, List<Connection> connections, Docroot docroot, String indexName) throws IOException {
+        IndexCache cache;
+        Indexes loaded;
         Map<Node, Node> targets;
-        Index all;
-        Index prev;
+        Map<Node, List<Node>> sessions;
+        Distributor result;
 
         targets = new LinkedHashMap<>(); // to preserve order
-        if (connections.isEmpty()) {
-            prev = new Index();
-            all = new Index();
-        } else {
-            all = null;
-            prev = null;
-            for (Connection connection : connections) {
-                destroot = docroot.node(connection);
-                file = docroot.index(connection, indexName);
-                prev = loadSame(file, prev);
-                targets.put(file, destroot);
-                all = loadSame(docroot.index(connection, Index.ALL_IDX), all);
-            }
+        sessions = new HashMap<>();
+        cache = pool == null ? null : pool.getIndexCache();
+        loaded = load(connections, docroot, indexName, cache);
+        for (Connection connection : connections) {
+            targets.put(docroot.index(connection, indexName), docroot.node(connection));
+            sessions.put(docroot.node(connection), docroot.nodes(connection));
         }
-        return new Distributor(targets, all, prev);
+        result = new Distributor(targets, sessions, loaded.all, loaded.prev);
+        result.cache = cache;
+        if (pool != null && pool.isOptimistic() && !connections.isEmpty()) {
+            result.pool = pool;
+            result.connections = connections;
+            result.docroot = docroot;
+            result.indexName = indexName;
+        }
+        return result;
     }
 
-    private static Index loadSame(Node src, Index prev) throws IOException {
-        Index tmp;
+    /** loads from the first host, the others are checked against its digests */
+    private static Indexes load(List<Connection> connections, final Docroot docroot, final String indexName,
+                                final IndexCache cache) throws IOException {
+        Generation first;
+        final Indexes result;
+        final String prevDigest;
 
-        if (src.exists()) {
-            tmp = Index.load(src);
-        } else {
-            tmp = new Index();
+        if (connections.isEmpty()) {
+            return new Indexes(new Index(), new AllIndex());
         }
-        if (prev == null) {
-            return tmp;
-        } else {
-            if (!prev.equals(tmp)) {
-                throw new IOException("index mismatch: " + src.getURI());
+        first = Generation.load(docroot.indexes(connections.get(0)), cache);
+        result = new Indexes(first.load(indexName), AllIndex.load(first));
+        prevDigest = Generation.digest(result.prev);
+        Parallel.run("check indexes", connections.subList(1, connections.size()), 0, new Parallel.Task<Connection, Void>() {
+            @Override
+            public Void invoke(Connection connection) throws IOException {
+                Generation generation;
+
+                generation = Generation.load(docroot.indexes(connection), cache);
+                if (!Objects.equals(prevDigest, generation.digest(indexName))) {
+                    throw new IOException("index mismatch: " + generation.getDir().join(indexName).getURI());
+                }
+                result.all.check(generation);
+                return null;
             }
-            return prev;
-        }
+        });
+        return result;
+    }
+
+    private static List<Generation> load(List<Node> dirs, final IndexCache cache) throws IOException {
+        return Parallel.run("load indexes", dirs, 0, new Parallel.Task<Node, Generation>() {
+            @Override
+            public Generation invoke(Node dir) throws IOException {
+                return Generation.load(dir, cache);
+            }
+        });
     }
 
     /** left: index location; right: docroot */
     private final Map<Node, Node> targets;
-    private final Index all;
-    private final Index prev;
+    /** all index and previous index; replaced when the commit finds them modified concurrently */
+    private AllIndex all;
+    private Index prev;
     private final Index next;
+    private final List<Host> hosts;
+
+    /** to lock and re-load the indexes for the commit; null if connections are already locked */
+    private Pool pool;
+    private List<Connection> connections;
+    private Docroot docroot;
+    private String indexName;
+    /** true while the hosts are locked */
+    private boolean locked;
+    /** null if uploads are not recorded */
+    private Progress progress;
+    /** true to store content-addressed files once per md5 and name, see {@link Label#shared()} */
+    private boolean dedup;
+    /** md5 of the paths uploaded by this publish */
+    private final Map<String, byte[]> submitted;
+    /** millis of the first upload, or earlier if uploads of a previous run were skipped; 0 if nothing was uploaded */
+    private long started;
+    /** minutes to keep unreferenced files; negative to keep them until fsck -gc */
+    private int gcGrace;
+    /** null to load indexes from the hosts every time */
+    private IndexCache cache;
+
+    public Distributor(Map<Node, Node> targets, AllIndex all, Index prev) {
+        this(targets, new HashMap<Node, List<Node>>(), all, prev);
+    }
+
+    /**
+     * @param sessions maps a docroot to the same docroot in every session of the host, starting with the docroot itself.
+     *                 Docroots without sessions are uploaded with a single session.
+     */
+    public Distributor(Map<Node, Node> targets, Map<Node, List<Node>> sessions, AllIndex all, Index prev) {
+        List<Node> lst;
 
-    public Distributor(Map<Node, Node> targets, Index all, Index prev) {
         this.targets = targets;
         this.all = all;
         this.prev = prev;
         this.next = new Index();
+        this.hosts = new ArrayList<>();
+        this.pool = null;
+        this.connections = null;
+        this.docroot = null;
+        this.indexName = null;
+        this.locked = false;
+        this.progress = null;
+        this.dedup = false;
+        this.submitted = new HashMap<>();
+        this.started = 0;
+        this.gcGrace = GC_GRACE_MINUTES;
+        this.cache = null;
+        for (Node docroot : targets.values()) {
+            lst = sessions.get(docroot);
+            hosts.add(new Host(lst == null ? Collections.singletonList(docroot) : lst));
+        }
+    }
+
+    /**
+     * Upload files in batches via tar over a single ssh command, see {@link Batch}. Has to be called before the first write.
+     *
+     * @param files max number of files per batch; 0 to upload files separately
+     */
+    public void setBatch(int files, boolean gzip) {
+        for (Host host : hosts) {
+            host.setBatch(files, gzip);
+        }
+    }
+
+    /**
+     * Equal files of different modules share one path. Reference counts in the all index count every label of the
+     * path, so the file is removed with its last reference. Has to be called before the first write.
+     */
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * Has to be called before the first write.
+     *
+     * @param minutes to keep unreferenced files and to trust progress records; negative to keep files until fsck -gc
+     */
+    public void setGcGrace(int minutes) {
+        this.gcGrace = minutes;
     }
 
+    /**
+     * Records uploads in a journal in the cache directory, see {@link Progress}. Has to be called before the first write,
+     * and after setGcGrace.
+     *
+     * @param resume true to skip uploads recorded by a previous publish of this index that did not commit
+     */
+    public void setProgress(FileNode cache, boolean resume) throws IOException {
+        StringBuilder key;
+        List<Node> docroots;
+
+        if (progress != null) {
+            throw new IllegalStateException("progress already set");
+        }
+        key = new StringBuilder();
+        docroots = new ArrayList<>();
+        for (Map.Entry<Node, Node> entry : targets.entrySet()) {
+            key.append(entry.getKey().getURI()).append('\n');
+            docroots.add(entry.getValue());
+        }
+        // CAUTION: directly in the cache directory - sub directories would cause permission problems
+        progress = Progress.open(cache.join("progress-" + Hex.encodeString(Resource.md5(key.toString().getBytes(StandardCharsets.UTF_8)))
+                + ".log"), docroots, resume, graceMinutes());
+        for (Host host : hosts) {
+            host.progress = progress;
+        }
+    }
+
+    /**
+     * Uploading is asynchronous; the resource must not change until close. With an optimistic pool, hosts are
+     * locked before the first upload that's not content-addressed, because concurrent publishes might upload
+     * different content to the same path.
+     *
+     * @return true if the file was uploaded; with dedup, the label added to the index might have a different path
+     */
     public boolean write(Label label, Resource resource) throws IOException {
-        Node dest;
         String destPath;
         Label allLabel;
         boolean changed;
-        Node tmp;
+        int skipped;
 
+        if (pool != null && !locked && !label.isContentAddressed()) {
+            lock();
+            if (!unchanged(Generation.load(dirs().get(0), cache))) {
+                rebase();
+            }
+        }
+        if (dedup) {
+            label = label.shared();
+        }
         destPath = label.getLavendelizedPath();
         allLabel = all.lookup(destPath);
         if (allLabel != null && Arrays.equals(allLabel.md5(), label.md5())) {
             changed = false;
+        } else if (Arrays.equals(submitted.get(destPath), label.md5())) {
+            // already uploaded for another label
+            changed = false;
         } else {
+            submitted.put(destPath, label.md5());
             if (allLabel == null) {
                 LOG.info("A " + destPath);
             } else {
                 LOG.info("U " + destPath);
             }
-            for (Node destroot : targets.values()) {
-                dest = destroot.join(destPath);
-                if (allLabel == null) {
-                    dest.getParent().mkdirsOpt();
-                    dest.writeBytes(resource.getData());
+            skipped = 0;
+            if (started == 0) {
+                started = System.currentTimeMillis();
+            }
+            for (Host host : hosts) {
+                // content-addressed files cannot have been modified since they were recorded
+                if (progress != null && label.isContentAddressed() && progress.isDone(host.docroot, destPath, label.md5())) {
+                    // records are trusted for the grace period
+                    started = Math.min(started, System.currentTimeMillis() - graceMinutes() * 60L * 1000);
+                    skipped++;
                 } else {
-                    tmp = dest.getParent().join(".atomicUpdate");
-                    tmp.writeBytes(resource.getData());
-                    tmp.move(dest, true);
+                    host.submit(destPath, allLabel != null, label.md5(), resource);
                 }
             }
+            if (skipped > 0) {
+                LOG.info("resumed on " + skipped + " of " + hosts.size() + " hosts: " + destPath);
+            }
             changed = true;
         }
         next.add(label);
         return changed;
     }
 
+    /**
+     * Files are written to a temporary file and renamed, also new ones: content-addressed files are uploaded without
+     * lock, so concurrent publishes might write the same path, and a partial file must never get the final name.
+     */
+    private static void upload(Node destroot, String destPath, boolean update, Resource resource) throws IOException {
+        Node dest;
+        Node tmp;
+
+        dest = destroot.join(destPath);
+        if (!update) {
+            mkdirsOpt(dest.getParent());
+        }
+        // unique name, so concurrent publishing into the same directory cannot collide
+        tmp = dest.getParent().join(".atomicUpdate-" + UUID.randomUUID());
+        try {
+            copy(resource, tmp);
+            tmp.move(dest, true);
+        } catch (IOException | RuntimeException e) {
+            try {
+                tmp.deleteFileOpt();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /** other sessions of the host might create the same directories concurrently */
+    private static void mkdirsOpt(Node dir) throws IOException {
+        for (int retry = 0; true; retry++) {
+            try {
+                dir.mkdirsOpt();
+                return;
+            } catch (IOException e) {
+                if (dir.isDirectory()) {
+                    return;
+                }
+                if (retry == MKDIR_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** streams the resource; local files are copied channel to channel */
+    private static void copy(Resource resource, Node dest) throws IOException {
+        long size;
+        long pos;
+        long count;
 
-    /** return next index */
+        if (dest instanceof FileNode) {
+            size = resource.getSize();
+            try (ReadableByteChannel src = resource.openChannel();
+                 FileChannel out = FileChannel.open(((FileNode) dest).toPath(),
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                pos = 0;
+                while (pos < size) {
+                    count = out.transferFrom(src, pos, size - pos);
+                    if (count <= 0) {
+                        throw new IOException(resource.getOrigin() + ": unexpected end of data after " + pos + " of " + size + " bytes");
+                    }
+                    pos += count;
+                }
+            }
+        } else {
+            try (OutputStream out = dest.createOutputStream()) {
+                resource.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Waits for all uploads; indexes are saved only if all hosts succeeded. With an optimistic pool, the hosts are
+     * locked for switching to the new generation only. If another publish modified the indexes in the meantime, the
+     * lock is released, this publish is based on the new indexes, and saving is retried. return next index
+     */
     public Index close() throws IOException {
-        Node directory;
-        Node index;
+        List<IOException> failures;
+        IOException failure;
+        IOException e;
+
+        failures = new ArrayList<>();
+        try {
+            for (Host host : hosts) {
+                failure = host.finish();
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+        } finally {
+            for (Host host : hosts) {
+                host.abort();
+            }
+            if (progress != null) {
+                progress.close();
+            }
+        }
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        }
+        if (!failures.isEmpty()) {
+            e = new IOException("upload failed on " + failures.size() + " of " + hosts.size() + " hosts");
+            for (IOException f : failures) {
+                e.addSuppressed(f);
+            }
+            throw e;
+        }
+        try {
+            for (int attempt = 1; true; attempt++) {
+                if (commit()) {
+                    if (progress != null) {
+                        progress.delete();
+                    }
+                    return next;
+                }
+                if (attempt == COMMIT_ATTEMPTS) {
+                    throw new IOException("indexes modified concurrently, giving up after " + attempt + " attempts");
+                }
+                unlock();
+                LOG.info("indexes modified concurrently, re-loading");
+                rebase();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    private void lock() throws IOException {
+        if (!locked) {
+            pool.lock(connections);
+            locked = true;
+        }
+    }
 
+    private void unlock() throws IOException {
+        if (locked) {
+            locked = false;
+            pool.unlock(connections);
+        }
+    }
+
+    /** @return indexes directories of all hosts */
+    private List<Node> dirs() {
+        List<Node> result;
+
+        result = new ArrayList<>();
+        for (Node index : targets.keySet()) {
+            result.add(index.getParent());
+        }
+        return result;
+    }
+
+    private String indexName() {
+        return targets.keySet().iterator().next().getName();
+    }
+
+    /** @return true if the generation has the indexes this publish is based on */
+    private boolean unchanged(Generation generation) throws IOException {
+        return Objects.equals(generation.digest(indexName()), Generation.digest(prev)) && all.unchanged(generation);
+    }
+
+    /**
+     * Bases this publish on the current indexes. Uploads were decided on the old all index, so fails if a path was
+     * modified concurrently, or if a file was not uploaded because it existed and it has been removed since.
+     */
+    private void rebase() throws IOException {
+        Indexes current;
+        String path;
+        Label old;
+        Label now;
+        Node file;
+
+        current = load(connections, docroot, indexName, cache);
+        for (Label label : next) {
+            path = label.getLavendelizedPath();
+            old = all.lookup(path);
+            now = current.all.lookup(path);
+            if (sameMd5(old, now) || (now != null && Arrays.equals(now.md5(), label.md5()))) {
+                continue;
+            }
+            if (now != null) {
+                throw new IOException("modified concurrently: " + path);
+            }
+            if (old != null && Arrays.equals(old.md5(), label.md5())) {
+                // not uploaded because it existed; the last reference is gone now, so it might have been removed
+                for (Node docroot : targets.values()) {
+                    file = docroot.join(path);
+                    if (!file.exists()) {
+                        throw new IOException("removed concurrently: " + file.getURI());
+                    }
+                }
+            }
+        }
+        all = current.all;
+        prev = current.prev;
+    }
+
+    private static boolean sameMd5(Label left, Label right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        return Arrays.equals(left.md5(), right.md5());
+    }
+
+    /**
+     * Saves the indexes as a new generation on every host. The data files are written first, then the manifests are
+     * switched; with an optimistic pool, the hosts are locked for switching only.
+     *
+     * @return false if the indexes were modified concurrently; nothing was switched then
+     */
+    private boolean commit() throws IOException {
+        List<Node> dirs;
+        List<Generation> generations;
+        String name;
+        final AllIndex updated;
+        Map<String, String> digests;
+        Map<String, Index> indexes;
+        Map<String, Generation.Journal> journals;
+        Generation.Source source;
+        Index tombstones;
+        Index nextTombstones;
+        List<String> removed;
+        List<Step> steps;
+        Step step;
+        List<Generation> current;
+        long written;
+
+        if (targets.isEmpty()) {
+            return true;
+        }
+        dirs = dirs();
+        generations = load(dirs, cache);
+        if (pool != null && !unchanged(generations.get(0))) {
+            return false;
+        }
+        updated = all.copy();
         for (Label label : prev) {
-            if (!all.removeReferenceOpt(label.getLavendelizedPath())) {
+            if (!updated.removeReferenceOpt(label.getLavendelizedPath())) {
                 throw new IOException("not found in all.idx: " + label.getLavendelizedPath());
             }
         }
         for (Label label : next) {
-            all.addReference(label.getLavendelizedPath(), label.md5());
+            updated.addReference(label.getLavendelizedPath(), label.md5());
         }
-        for (Map.Entry<Node, Node> entry : targets.entrySet()) {
-            index = entry.getKey();
-            directory = index.getParent();
-            directory.mkdirsOpt();
-            next.save(index);
-            all.save(directory.join(Index.ALL_IDX));
+        tombstones = tombstones(generations);
+        removed = new ArrayList<>();
+        nextTombstones = nextTombstones(tombstones, updated, removed);
+        digests = new HashMap<>();
+        indexes = new HashMap<>();
+        journals = new HashMap<>();
+        updated.save(digests, indexes, journals);
+        name = indexName();
+        put(name, prev, next, digests, indexes, journals);
+        put(TOMBSTONES, tombstones, nextTombstones, digests, indexes, journals);
+        source = new Generation.Source() {
+            @Override
+            public Index load(String name) throws IOException {
+                return updated.load(name);
+            }
+        };
+        steps = new ArrayList<>();
+        for (Generation generation : generations) {
+            step = new Step(generation);
+            step.entries = generation.next(digests, indexes, journals, source, step.data);
+            steps.add(step);
+        }
+        written = System.currentTimeMillis();
+        Parallel.run("write indexes", steps, 0, new Parallel.Task<Step, Void>() {
+            @Override
+            public Void invoke(Step step) throws IOException {
+                step.generation.write(step.data);
+                return null;
+            }
+        });
+        if (pool != null) {
+            lock();
+            current = load(dirs, cache);
+            for (int i = 0; i < current.size(); i++) {
+                if (!current.get(i).same(generations.get(i))) {
+                    return false;
+                }
+            }
+            checkUploads();
+            checkData(steps, written);
+        }
+        switchTo(steps);
+        if (!removed.isEmpty()) {
+            gc(removed);
+        }
+        return true;
+    }
+
+    /**
+     * Uploads are not locked, so garbage collection by fsck -gc or by other publishes removes uploaded files once they
+     * are older than the grace period. Called while the hosts are locked, before switching; the check is skipped
+     * while no upload can be that old.
+     */
+    private void checkUploads() throws IOException {
+        final List<String> paths;
+        List<Node> docroots;
+        List<List<String>> missing;
+        List<String> lst;
+
+        if (started == 0 || System.currentTimeMillis() - started < graceMinutes() * 60L * 1000) {
+            return;
+        }
+        paths = new ArrayList<>(submitted.keySet());
+        docroots = new ArrayList<>(targets.values());
+        missing = Parallel.run("check uploads", docroots, 0, new Parallel.Task<Node, List<String>>() {
+            @Override
+            public List<String> invoke(Node docroot) throws IOException {
+                return missing(docroot, paths);
+            }
+        });
+        for (int i = 0; i < docroots.size(); i++) {
+            lst = missing.get(i);
+            if (!lst.isEmpty()) {
+                throw new IOException(docroots.get(i).getURI() + ": " + lst.size() + " uploaded files removed by garbage "
+                        + "collection before the commit, e.g. " + lst.get(0) + " - publish again");
+            }
+        }
+    }
+
+    /**
+     * fsck -gc removes data files not referenced by the current or previous generation once they're older than the
+     * grace period, and waiting for the lock might take that long. Missing data files are written again; that's safe
+     * because the hosts are locked.
+     */
+    private void checkData(List<Step> steps, long written) throws IOException {
+        if (System.currentTimeMillis() - written < graceMinutes() * 60L * 1000) {
+            return;
+        }
+        Parallel.run("check indexes", steps, 0, new Parallel.Task<Step, Void>() {
+            @Override
+            public Void invoke(Step step) throws IOException {
+                Map<String, byte[]> data;
+
+                data = new HashMap<>();
+                for (String file : missing(step.generation.getDir(), new ArrayList<>(step.data.keySet()))) {
+                    data.put(file, step.data.get(file));
+                }
+                if (!data.isEmpty()) {
+                    LOG.info(step.generation.getDir().getURI() + ": writing " + data.size() + " removed data files again");
+                    step.generation.write(data);
+                }
+                return null;
+            }
+        });
+    }
+
+    /** minutes unreferenced files are kept by publishing or by fsck -gc */
+    private int graceMinutes() {
+        return gcGrace < 0 ? GC_GRACE_MINUTES : gcGrace;
+    }
+
+    private static void put(String name, Index prev, Index next, Map<String, String> digests, Map<String, Index> indexes,
+                            Map<String, Generation.Journal> journals) throws IOException {
+        List<String> records;
+
+        digests.put(name, Generation.digest(next));
+        indexes.put(name, next);
+        records = next.delta(prev);
+        if (next.size() > 0 && prev.appendable(records.size())) {
+            journals.put(name, Generation.Journal.create(prev, records));
+        }
+    }
+
+    /** @return tombstones of the first generation; the others have to be equal */
+    private static Index tombstones(List<Generation> generations) throws IOException {
+        Generation first;
+        String digest;
+
+        first = generations.get(0);
+        digest = first.digest(TOMBSTONES);
+        for (Generation generation : generations.subList(1, generations.size())) {
+            if (!Objects.equals(digest, generation.digest(TOMBSTONES))) {
+                throw new IOException("index mismatch: " + generation.getDir().join(TOMBSTONES).getURI());
+            }
+        }
+        return first.load(TOMBSTONES);
+    }
+
+    /**
+     * Adds the paths that lost their last reference, and drops the paths that are referenced again.
+     *
+     * @param removed receives the paths to remove from the docroots because their grace period is over
+     */
+    private Index nextTombstones(Index tombstones, AllIndex updated, List<String> removed) throws IOException {
+        long now;
+        String path;
+        Index result;
+
+        now = System.currentTimeMillis();
+        result = new Index();
+        for (Label tombstone : tombstones) {
+            path = tombstone.getOriginalPath();
+            if (updated.lookup(path) != null) {
+                continue;
+            }
+            if (gcGrace >= 0 && Long.parseLong(tombstone.getLavendelizedPath()) + gcGrace * 60L * 1000 <= now) {
+                removed.add(path);
+            } else {
+                result.add(tombstone);
+            }
+        }
+        for (Label label : prev) {
+            path = label.getLavendelizedPath();
+            if (updated.lookup(path) == null && result.lookup(path) == null && !removed.contains(path)) {
+                result.add(new Label(path, Long.toString(now), label.md5()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the files from all docroots unless they were modified in the grace period, i.e. uploaded again by a
+     * publish that has not committed yet. Failures are logged only; fsck -gc removes the remaining files.
+     */
+    private void gc(final List<String> paths) {
+        try {
+            Parallel.run("gc", new ArrayList<>(targets.values()), 0, new Parallel.Task<Node, Void>() {
+                @Override
+                public Void invoke(Node docroot) throws IOException {
+                    LOG.info(docroot.getURI() + ": removed " + gc(docroot, paths, gcGrace) + " of " + paths.size() + " unreferenced files");
+                    return null;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("gc failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the files modified before the grace period, and their directories if they became empty. Uses a single
+     * command per docroot where possible.
+     *
+     * @return number of files removed
+     */
+    public static int gc(Node docroot, final List<String> paths, int graceMinutes) throws IOException {
+        Shell shell;
+        String output;
+        long limit;
+        Node file;
+        int count;
+
+        shell = Shell.createOpt(docroot);
+        if (shell != null) {
+            // without docroot, the input is read anyway - otherwise writing it fails with a broken pipe
+            output = shell.exec("gc", "cd " + Shell.quote(shell.directory) + " 2>/dev/null || { cat >/dev/null; exit 0; }\n"
+                    + "removed=\"$(tr '\\n' '\\0' | xargs -0 -r sh -c 'find \"$@\" -maxdepth 0 -type f -mmin +" + graceMinutes
+                    + " -print -delete 2>/dev/null; true' sh)\"\n"
+                    + "[ -n \"$removed\" ] || exit 0\n"
+                    + "printf '%s\\n' \"$removed\" | sed -n 's|/[^/]*$||p' | sort -u | tr '\\n' '\\0'"
+                    + " | xargs -0 -r rmdir -p --ignore-fail-on-non-empty 2>/dev/null\n"
+                    + "printf '%s\\n' \"$removed\"\n", new Shell.Input() {
+                @Override
+                public void write(OutputStream dest) throws IOException {
+                    for (String path : paths) {
+                        if (path.indexOf('\n') == -1) {
+                            // so paths starting with - are not taken for options
+                            dest.write(("./" + path + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+            });
+            return output.isEmpty() ? 0 : output.split("\n").length;
+        }
+        limit = System.currentTimeMillis() - graceMinutes * 60L * 1000;
+        count = 0;
+        for (String path : paths) {
+            file = docroot.join(path);
+            if (file.isFile() && file.getLastModified() < limit) {
+                file.deleteFile();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** @return paths that are not files in the docroot */
+    static List<String> missing(Node docroot, final List<String> paths) throws IOException {
+        Shell shell;
+        String output;
+        List<String> result;
+
+        result = new ArrayList<>();
+        shell = Shell.createOpt(docroot);
+        if (shell != null) {
+            output = shell.exec("check", "cd " + Shell.quote(shell.directory) + " 2>/dev/null || { cat; exit 0; }\n"
+                    + "while IFS= read -r f; do [ -f \"./$f\" ] || printf '%s\\n' \"$f\"; done\n", new Shell.Input() {
+                @Override
+                public void write(OutputStream dest) throws IOException {
+                    for (String path : paths) {
+                        if (path.indexOf('\n') == -1) {
+                            dest.write((path + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+            });
+            if (!output.isEmpty()) {
+                result.addAll(Arrays.asList(output.split("\n")));
+            }
+            return result;
+        }
+        for (String path : paths) {
+            if (!docroot.join(path).isFile()) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /** switches every host to its next generation; if that fails for a host, all hosts are switched back */
+    private static void switchTo(List<Step> steps) throws IOException {
+        List<Step> done;
+
+        done = new ArrayList<>();
+        try {
+            for (Step step : steps) {
+                // before switching, because a failed rename might have happened anyway
+                done.add(step);
+                step.generation.switchTo(Generation.manifest(step.entries));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Step step : done) {
+                try {
+                    step.generation.restore();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        for (Step step : steps) {
+            step.generation.markFormat();
+        }
+    }
+
+    static byte[] bytes(Index index) throws IOException {
+        ByteArrayOutputStream dest;
+
+        dest = new ByteArrayOutputStream();
+        index.save(dest);
+        return dest.toByteArray();
+    }
+
+    //--
+
+    /**
+     * Uploads to one docroot with one worker thread per session. A path is always uploaded by the same worker, so uploads
+     * of a path keep their order. The first failure is recorded and skips all remaining uploads.
+     */
+    private static class Host {
+        private final Node docroot;
+        private final Lane[] lanes;
+        private final Semaphore pending;
+        private volatile IOException failure;
+        /** null if uploads are not recorded */
+        public Progress progress;
+
+        public Host(List<Node> sessions) {
+            this.docroot = sessions.get(0);
+            this.lanes = new Lane[sessions.size()];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane(sessions.get(i));
+            }
+            this.pending = new Semaphore(PENDING_UPLOADS * lanes.length);
+            this.failure = null;
+            this.progress = null;
+        }
+
+        public void setBatch(int files, boolean gzip) {
+            for (Lane lane : lanes) {
+                if (lane.worker.getTaskCount() > 0) {
+                    throw new IllegalStateException("uploads already started");
+                }
+                lane.batch = files == 0 ? null : Batch.createOpt(lane.docroot, files, gzip);
+            }
+        }
+
+        /** blocks while too many uploads are pending */
+        public void submit(final String destPath, final boolean update, final byte[] md5, final Resource resource) throws IOException {
+            final Lane lane;
+
+            if (failure != null) {
+                return;
+            }
+            lane = lanes[(destPath.hashCode() & Integer.MAX_VALUE) % lanes.length];
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                throw new IOException("upload interrupted", e);
+            }
+            lane.worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (failure == null) {
+                            if (lane.batch != null && lane.batch.add(destPath, md5, resource)) {
+                                lane.batched.put(destPath, md5);
+                                if (lane.batch.isFull()) {
+                                    flush(lane);
+                                }
+                            } else {
+                                upload(lane.docroot, destPath, update, resource);
+                                if (progress != null) {
+                                    progress.record(docroot, Collections.singletonMap(destPath, md5));
+                                }
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        fail("upload failed for " + destPath, e);
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        }
+
+        /** @return null if all uploads succeeded */
+        public IOException finish() throws IOException {
+            for (final Lane lane : lanes) {
+                lane.worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure == null && lane.batch != null) {
+                            flush(lane);
+                        }
+                    }
+                });
+                lane.worker.shutdown();
+            }
+            try {
+                for (Lane lane : lanes) {
+                    lane.worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("upload interrupted", e);
+            }
+            return failure;
+        }
+
+        public void abort() {
+            for (Lane lane : lanes) {
+                lane.worker.shutdownNow();
+            }
+        }
+
+        private void flush(Lane lane) {
+            int size;
+
+            size = lane.batch.size();
+            try {
+                lane.batch.flush();
+                if (progress != null) {
+                    progress.record(docroot, lane.batched);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail("upload failed for batch of " + size + " files", e);
+            } finally {
+                lane.batched.clear();
+            }
+        }
+
+        private void fail(String message, Exception e) {
+            failure = new IOException(docroot.getURI() + ": " + message + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** a session of a host */
+    private static class Lane {
+        public final Node docroot;
+        public final ThreadPoolExecutor worker;
+        /** null to upload files separately; only accessed by the worker thread */
+        public Batch batch;
+        /** md5 of the files in the batch, by path */
+        public final Map<String, byte[]> batched;
+
+        public Lane(final Node docroot) {
+            this.docroot = docroot;
+            this.worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread;
+
+                            thread = new Thread(runnable, "upload " + docroot.getURI());
+                            // don't block jvm termination if close is never called
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.batch = null;
+            this.batched = new LinkedHashMap<>();
+        }
+    }
+
+    /** Saving the indexes on one host */
+    private static class Step {
+        public final Generation generation;
+        /** data files to write, by name */
+        public final Map<String, byte[]> data;
+        public Map<String, Generation.Entry> entries;
+
+        public Step(Generation generation) {
+            this.generation = generation;
+            this.data = new HashMap<>();
+            this.entries = null;
+        }
+    }
+
+    private static class Indexes {
+        public final Index prev;
+        public final AllIndex all;
+
+        public Indexes(Index prev, AllIndex all) {
+            this.prev = prev;
+            this.all = all;
         }
-        return next;
     }
 }
@@ -0,0 +1,447 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.modules.Resource;
+import net.oneandone.sushi.fs.Node;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The indexes of a docroot on one host. Index files are never modified: new versions are written to the data directory,
+ * named after their md5, and a manifest lists the files of the current generation. Publishing replaces the manifest
+ * with a single rename, so readers always see a consistent generation; the replaced manifest is kept to roll back.
+ * Index directories without manifest have plain index files; they're migrated by the next publish. Plain index files
+ * are kept, and .all.idx is replaced by a directory, so versions before generations fail on migrated directories
+ * instead of publishing plain indexes that are ignored, or garbage collecting files they don't know references for.
+ *
+ * Manifest format, one line per index, sorted by name:
+ *   name digest file journal*
+ *
+ * where
+ *   name      index name; all index shards are named .all/xx.idx
+ *   digest    Index.digest of the index
+ *   file      data file with the complete index
+ *   journal   data files with journal blocks for the complete index, in the order to replay them
+ */
+public class Generation {
+    public static final String CURRENT = ".current";
+    public static final String PREVIOUS = ".previous";
+    public static final String DATA = ".data";
+    /** directory that versions before generations fail to load as index; also replaces .all.idx */
+    public static final String MARKER = "requires-lavender-2.4.3";
+
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /** @param dir indexes directory of a docroot */
+    public static Generation load(Node dir) throws IOException {
+        return load(dir, null);
+    }
+
+    /** @param cache null to load indexes from the directory every time */
+    public static Generation load(Node dir, IndexCache cache) throws IOException {
+        Generation result;
+
+        result = loadOpt(dir, CURRENT, cache);
+        if (result != null) {
+            return result;
+        }
+        result = new Generation(dir, null, cache);
+        if (dir.exists()) {
+            for (Node file : dir.list()) {
+                if (!file.getName().startsWith(".") && file.isFile()) {
+                    result.entries.put(file.getName(), new Entry(null, file.getName(), Collections.<String>emptyList()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return null if the manifest does not exist */
+    private static Generation loadOpt(Node dir, String manifestName, IndexCache cache) throws IOException {
+        Node file;
+        Generation result;
+        String[] fields;
+
+        file = dir.join(manifestName);
+        if (!file.exists()) {
+            return null;
+        }
+        result = new Generation(dir, file.readBytes(), cache);
+        for (String line : new String(result.manifest, StandardCharsets.UTF_8).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            fields = line.split(" ");
+            if (fields.length < 3) {
+                throw new IOException(file.getURI() + ": invalid line: " + line);
+            }
+            result.entries.put(fields[0], new Entry(fields[1], fields[2], Arrays.asList(fields).subList(3, fields.length)));
+        }
+        return result;
+    }
+
+    /** @return digest of the index as stored in a manifest; null for an empty index, which is not stored */
+    public static String digest(Index index) {
+        return index.size() == 0 ? null : Hex.encodeString(index.digest());
+    }
+
+    /** @return data file name for a complete index */
+    static String indexFile(byte[] data) {
+        return indexFile(Hex.encodeString(Resource.md5(data)));
+    }
+
+    static String indexFile(String md5) {
+        return DATA + "/" + md5 + INDEX_SUFFIX;
+    }
+
+    /** @return data file name for a journal block */
+    static String journalFile(byte[] data) {
+        return DATA + "/" + Hex.encodeString(Resource.md5(data)) + JOURNAL_SUFFIX;
+    }
+
+    static byte[] manifest(Map<String, Entry> entries) {
+        StringBuilder builder;
+
+        builder = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void writeAtomic(Node file, byte[] data) throws IOException {
+        Node tmp;
+
+        tmp = file.getParent().join("." + file.getName() + ".tmp-" + UUID.randomUUID());
+        try {
+            tmp.writeBytes(data);
+            tmp.move(file, true);
+        } catch (IOException | RuntimeException e) {
+            try {
+                tmp.deleteFileOpt();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    //--
+
+    private final Node dir;
+    /** null for a directory without manifest */
+    private final byte[] manifest;
+    private final Map<String, Entry> entries;
+    /** null if not cached */
+    private final IndexCache cache;
+
+    private Generation(Node dir, byte[] manifest, IndexCache cache) {
+        this.dir = dir;
+        this.manifest = manifest;
+        this.entries = new TreeMap<>();
+        this.cache = cache;
+    }
+
+    public Node getDir() {
+        return dir;
+    }
+
+    /** @return true if the directory has plain index files instead of a manifest */
+    public boolean isLegacy() {
+        return manifest == null;
+    }
+
+    /** @return sorted index names */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /** @return null if there's no such index */
+    Entry entry(String name) {
+        return entries.get(name);
+    }
+
+    /** @return null if there's no such index. Plain index files are loaded to compute the digest. */
+    public synchronized String digest(String name) throws IOException {
+        Entry entry;
+
+        entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.digest == null) {
+            entry = new Entry(digest(load(name)), entry.file, entry.journals);
+            entries.put(name, entry);
+        }
+        return entry.digest;
+    }
+
+    /** @return empty index if there's no such index; indexes from the cache must not be modified */
+    public Index load(String name) throws IOException {
+        Entry entry;
+        List<Node> journals;
+        Index result;
+
+        entry = entries.get(name);
+        if (entry == null) {
+            return new Index();
+        }
+        // plain index files are not content-addressed
+        if (cache != null && entry.digest != null) {
+            result = cache.lookup(entry.toString());
+            if (result != null) {
+                return result;
+            }
+        }
+        journals = new ArrayList<>();
+        for (String journal : entry.journals) {
+            journals.add(dir.join(journal));
+        }
+        result = Index.load(dir.join(entry.file), journals);
+        if (entry.digest != null && !entry.digest.equals(digest(result))) {
+            throw new IOException(dir.join(entry.file).getURI() + ": digest mismatch");
+        }
+        if (cache != null && entry.digest != null) {
+            cache.put(entry.toString(), result);
+        }
+        return result;
+    }
+
+    /** @return md5 of the manifest; null for a directory without manifest */
+    public String manifestDigest() {
+        return manifest == null ? null : Hex.encodeString(Resource.md5(manifest));
+    }
+
+    /** @return true if both have the same manifest, or the same plain index files */
+    public boolean same(Generation other) {
+        return isLegacy() ? other.isLegacy() && entries.keySet().equals(other.entries.keySet()) : Arrays.equals(manifest, other.manifest);
+    }
+
+    /** @return data files referenced by this generation and the previous one, relative to the indexes directory */
+    public Set<String> referenced() throws IOException {
+        Set<String> result;
+        Generation previous;
+
+        result = new HashSet<>();
+        previous = loadOpt(dir, PREVIOUS, null);
+        for (Generation generation : previous == null ? Collections.singletonList(this) : Arrays.asList(this, previous)) {
+            for (Entry entry : generation.entries.values()) {
+                result.add(entry.file);
+                result.addAll(entry.journals);
+            }
+        }
+        return result;
+    }
+
+    //--
+
+    /**
+     * Computes the entries of the next generation. Indexes with the expected digest are kept, journals are appended
+     * to indexes that have the version they were computed against, other indexes are written completely.
+     *
+     * @param digests next digest by index name, null to remove the index
+     * @param indexes next version by index name; if missing, the source is asked
+     * @param data receives the data files to write before switching
+     */
+    Map<String, Entry> next(Map<String, String> digests, Map<String, Index> indexes, Map<String, Journal> journals,
+                            Source source, Map<String, byte[]> data) throws IOException {
+        Map<String, Entry> result;
+        String name;
+        String digest;
+        Entry entry;
+        Journal journal;
+        Index index;
+        byte[] bytes;
+        String file;
+
+        result = new TreeMap<>();
+        for (String existing : entries.keySet()) {
+            // computes digests of plain index files; empty ones are dropped
+            if (digest(existing) != null) {
+                result.put(existing, entries.get(existing));
+            }
+        }
+        for (Map.Entry<String, String> next : digests.entrySet()) {
+            name = next.getKey();
+            digest = next.getValue();
+            entry = entries.get(name);
+            journal = journals.get(name);
+            if (digest == null) {
+                result.remove(name);
+            } else if (entry != null && digest.equals(digest(name))) {
+                // unchanged
+            } else if (entry != null && journal != null && entry.file.equals(journal.file) && Objects.equals(journal.digest, digest(name))) {
+                file = journalFile(journal.data);
+                data.put(file, journal.data);
+                result.put(name, entry.append(digest, file));
+            } else {
+                index = indexes.get(name);
+                bytes = Distributor.bytes(index == null ? source.load(name) : index);
+                file = indexFile(bytes);
+                data.put(file, bytes);
+                result.put(name, new Entry(digest, file, Collections.<String>emptyList()));
+            }
+        }
+        return result;
+    }
+
+    /** writes the data files; they're not visible until switching */
+    void write(Map<String, byte[]> data) throws IOException {
+        if (!data.isEmpty()) {
+            dir.join(DATA).mkdirsOpt();
+        }
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            writeAtomic(dir.join(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /** atomically replaces the manifest, unless it's unchanged; the current one is kept as previous manifest */
+    void switchTo(byte[] next) throws IOException {
+        if (manifest == null) {
+            dir.mkdirsOpt();
+        } else if (Arrays.equals(manifest, next)) {
+            return;
+        } else {
+            writeAtomic(dir.join(PREVIOUS), manifest);
+        }
+        writeAtomic(dir.join(CURRENT), next);
+    }
+
+    /** switches back to this generation */
+    void restore() throws IOException {
+        if (manifest == null) {
+            dir.join(CURRENT).deleteFileOpt();
+        } else {
+            writeAtomic(dir.join(CURRENT), manifest);
+        }
+    }
+
+    /**
+     * Marks the directory after switching to the first generation: fsck before generations fails to load the marker
+     * directory as index, and publishing fails to load .all.idx. The single-file all index is moved into it.
+     */
+    void markFormat() throws IOException {
+        Node all;
+        Node tmp;
+
+        if (!isLegacy()) {
+            return;
+        }
+        marker(dir.join(MARKER));
+        all = dir.join(Index.ALL_IDX);
+        if (all.isFile()) {
+            tmp = dir.join(Index.ALL_IDX + ".tmp-" + UUID.randomUUID());
+            all.move(tmp);
+            marker(all);
+            tmp.move(all.join("all.idx"));
+        } else {
+            marker(all);
+        }
+    }
+
+    private static void marker(Node marker) throws IOException {
+        marker.mkdirsOpt();
+        marker.join("README").writeString("Indexes in this directory are managed by lavender 2.4.3 or newer; "
+                + "older versions must not publish to or fsck this docroot.\n");
+    }
+
+    //--
+
+    /** Files of an index */
+    static class Entry {
+        /** null if not computed yet */
+        public final String digest;
+        public final String file;
+        public final List<String> journals;
+
+        public Entry(String digest, String file, List<String> journals) {
+            this.digest = digest;
+            this.file = file;
+            this.journals = journals;
+        }
+
+        public Entry append(String nextDigest, String journal) {
+            List<String> lst;
+
+            lst = new ArrayList<>(journals);
+            lst.add(journal);
+            return new Entry(nextDigest, file, lst);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            Entry entry;
+
+            if (obj instanceof Entry) {
+                entry = (Entry) obj;
+                return Objects.equals(digest, entry.digest) && file.equals(entry.file) && journals.equals(entry.journals);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder;
+
+            builder = new StringBuilder();
+            builder.append(digest).append(' ').append(file);
+            for (String journal : journals) {
+                builder.append(' ').append(journal);
+            }
+            return builder.toString();
+        }
+    }
+
+    /** Journal block for an index, to be appended where the index has the version the block was computed against. */
+    static class Journal {
+        public static Journal create(Index original, List<String> records) throws IOException {
+            return new Journal(digest(original), indexFile(original.base()), original.journal(records));
+        }
+
+        public final String digest;
+        public final String file;
+        public final byte[] data;
+
+        public Journal(String digest, String file, byte[] data) {
+            this.digest = digest;
+            this.file = file;
+            this.data = data;
+        }
+    }
+
+    /** Loads indexes not passed to next */
+    interface Source {
+        Index load(String name) throws IOException;
+    }
+}
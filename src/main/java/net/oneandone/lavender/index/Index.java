@@ -17,13 +17,23 @@ package net.oneandone.lavender.index;
 
 import net.oneandone.sushi.fs.Node;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Properties;
 
 /**
@@ -36,6 +46,15 @@ import java.util.Properties;
  *   originalPath      source request path, that will be replaced by Lavender filter
  *   lavendelizedPath  path on Lavender Servers ... or some other data like a reference count
  *   md5               md5 sum of the resource
+ *
+ * Entries are saved sorted. Changes can be saved as journal blocks instead of re-writing the index; every block
+ * of journal records is tagged with the md5 of the index file it applies to, blocks for other index files are ignored.
+ *
+ * Journal format:
+ *   [
+ *   +originalPath = lavendelizedPath : md5
+ *   -originalPath
+ *   ] md5 of the index file
  */
 public class Index implements Iterable<Label> {
     public static final String ALL_IDX = ".all.idx";
@@ -44,28 +63,110 @@ public class Index implements Iterable<Label> {
 
     private static final String DELIMITER = ":";
 
+    /** the journal is compacted when it would exceed this number of records, or half the number of entries */
+    private static final int JOURNAL_RECORDS = 1000;
+
+    /** the journal is compacted when it would exceed this number of blocks, so loading needs few files */
+    private static final int JOURNAL_BLOCKS = 16;
+
+    private static final String JOURNAL_BEGIN = "[";
+
+    private static final String JOURNAL_END = "] ";
+
     public static Index load(Node src) throws IOException {
+        return load(src, Collections.<Node>emptyList());
+    }
+
+    /** loads the index file and replays the journal blocks */
+    public static Index load(Node src, List<? extends Node> journals) throws IOException {
         Index index;
+        byte[] data;
 
         index = new Index();
-        try (Reader reader = src.createReader()) {
+        data = src.readBytes();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(data), ENCODING)) {
             index.load(reader);
         }
+        index.base = Hex.encodeString(md5(data));
+        for (Node journal : journals) {
+            index.replay(new String(journal.readBytes(), ENCODING));
+        }
         return index;
     }
 
     //--
 
     private final Properties properties;
+    /** md5 of the index file this index was loaded from; null if not loaded */
+    private String base;
+    /** number of journal records replayed when loading */
+    private int journal;
+    /** number of journal blocks replayed when loading */
+    private int blocks;
 
     public Index() {
         properties = new Properties();
+        base = null;
+        journal = 0;
+        blocks = 0;
     }
 
     private void load(Reader in) throws IOException {
         properties.load(in);
     }
 
+    /** applies complete blocks for the base */
+    private void replay(String str) throws IOException {
+        List<String> block;
+
+        block = null;
+        for (String line : str.split("\n")) {
+            if (line.equals(JOURNAL_BEGIN)) {
+                block = new ArrayList<>();
+            } else if (line.startsWith(JOURNAL_END)) {
+                if (block != null && line.substring(JOURNAL_END.length()).equals(base)) {
+                    for (String record : block) {
+                        apply(record);
+                    }
+                    journal += block.size();
+                    blocks++;
+                }
+                block = null;
+            } else if (block != null && (line.startsWith("+") || line.startsWith("-"))) {
+                block.add(line);
+            }
+        }
+    }
+
+    private void apply(String record) throws IOException {
+        Properties parsed;
+        String key;
+
+        parsed = new Properties();
+        parsed.load(new StringReader(record.substring(1)));
+        if (parsed.size() != 1) {
+            throw new IOException("invalid journal record: " + record);
+        }
+        key = parsed.stringPropertyNames().iterator().next();
+        if (record.charAt(0) == '+') {
+            properties.setProperty(key, parsed.getProperty(key));
+        } else {
+            properties.remove(key);
+        }
+    }
+
+    /** @return copy of this index, including the file it was loaded from */
+    Index copy() {
+        Index result;
+
+        result = new Index();
+        result.properties.putAll(properties);
+        result.base = base;
+        result.journal = journal;
+        result.blocks = blocks;
+        return result;
+    }
+
     //--
 
     public int size() {
@@ -198,6 +299,88 @@ public class Index implements Iterable<Label> {
         return properties.hashCode();
     }
 
+    /** @return md5 over the sorted entries; equal indexes have equal digests, no matter how they were saved */
+    public byte[] digest() {
+        MessageDigest digest;
+        List<String> keys;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        keys = new ArrayList<>(properties.stringPropertyNames());
+        Collections.sort(keys);
+        for (String key : keys) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '=');
+            digest.update(properties.getProperty(key).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return digest.digest();
+    }
+
+    //-- journal
+
+    /** @return journal records that turn prev into this index, sorted by original path */
+    public List<String> delta(Index prev) {
+        List<String> keys;
+        List<String> result;
+        String value;
+        StringBuilder record;
+
+        keys = new ArrayList<>(properties.stringPropertyNames());
+        for (String key : prev.properties.stringPropertyNames()) {
+            if (!properties.containsKey(key)) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+        result = new ArrayList<>();
+        for (String key : keys) {
+            value = properties.getProperty(key);
+            if (!Objects.equals(value, prev.properties.getProperty(key))) {
+                record = new StringBuilder();
+                if (value == null) {
+                    record.append('-');
+                    escape(key, true, record);
+                } else {
+                    record.append('+');
+                    line(key, value, record);
+                }
+                result.add(record.toString());
+            }
+        }
+        return result;
+    }
+
+    /** @return true if a block with records can be added to the journal of the file this index was loaded from, false to compact */
+    public boolean appendable(int records) {
+        return base != null && blocks < JOURNAL_BLOCKS && journal + records <= Math.max(JOURNAL_RECORDS, size() / 2);
+    }
+
+    /** @return md5 of the file this index was loaded from; null if not loaded */
+    String base() {
+        return base;
+    }
+
+    /** @return journal block for the file this index was loaded from */
+    public byte[] journal(List<String> records) throws IOException {
+        StringBuilder block;
+
+        if (base == null) {
+            throw new IllegalStateException("not loaded from a file");
+        }
+        block = new StringBuilder(JOURNAL_BEGIN).append('\n');
+        for (String record : records) {
+            block.append(record).append('\n');
+        }
+        block.append(JOURNAL_END).append(base).append('\n');
+        return block.toString().getBytes(ENCODING);
+    }
+
+    //--
+
     public void save(Node indexFile) throws IOException {
         try (OutputStream dest = indexFile.createOutputStream()) {
             save(dest);
@@ -208,11 +391,75 @@ public class Index implements Iterable<Label> {
     public void save(OutputStream dest) throws IOException {
         Writer writer = new OutputStreamWriter(dest, ENCODING);
         save(writer);
+        writer.flush();
     }
 
-    /** dest will not be closed */
+    /** dest will not be closed; entries are sorted, so equal indexes result in equal files */
     public void save(Writer writer) throws IOException {
-        properties.store(writer, null);
+        List<String> keys;
+        StringBuilder line;
+
+        keys = new ArrayList<>(properties.stringPropertyNames());
+        Collections.sort(keys);
+        line = new StringBuilder();
+        for (String key : keys) {
+            line.setLength(0);
+            line(key, properties.getProperty(key), line);
+            line.append('\n');
+            writer.write(line.toString());
+        }
+    }
+
+    private static void line(String key, String value, StringBuilder dest) {
+        escape(key, true, dest);
+        dest.append('=');
+        escape(value, false, dest);
+    }
+
+    /** same escaping as Properties.store */
+    private static void escape(String str, boolean key, StringBuilder dest) {
+        char c;
+
+        for (int i = 0; i < str.length(); i++) {
+            c = str.charAt(i);
+            switch (c) {
+                case ' ':
+                    if (i == 0 || key) {
+                        dest.append('\\');
+                    }
+                    dest.append(c);
+                    break;
+                case '\t':
+                    dest.append("\\t");
+                    break;
+                case '\n':
+                    dest.append("\\n");
+                    break;
+                case '\r':
+                    dest.append("\\r");
+                    break;
+                case '\f':
+                    dest.append("\\f");
+                    break;
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                case '\\':
+                    dest.append('\\').append(c);
+                    break;
+                default:
+                    dest.append(c);
+            }
+        }
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public String toString() {
@@ -0,0 +1,65 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Indexes loaded from generations, to load them once for many publishes - e.g. the all index shards. Data files are
+ * named after their md5 and never modified, so an index is identified by its manifest entry on every host.
+ * Cached indexes must not be modified. Thread-safe; least recently used indexes are dropped first.
+ */
+public class IndexCache {
+    /** labels to keep */
+    private final int max;
+    /** indexes by manifest entry, least recently used first */
+    private final LinkedHashMap<String, Index> indexes;
+    private int size;
+
+    public IndexCache(int max) {
+        this.max = max;
+        this.indexes = new LinkedHashMap<>(16, 0.75f, true);
+        this.size = 0;
+    }
+
+    /** @return null if not cached */
+    public synchronized Index lookup(String entry) {
+        return indexes.get(entry);
+    }
+
+    public synchronized void put(String entry, Index index) {
+        Iterator<Map.Entry<String, Index>> iter;
+        Index old;
+
+        old = indexes.put(entry, index);
+        if (old != null) {
+            size -= old.size();
+        }
+        size += index.size();
+        iter = indexes.entrySet().iterator();
+        while (size > max && iter.hasNext()) {
+            size -= iter.next().getValue().size();
+            iter.remove();
+        }
+    }
+
+    /** @return number of cached indexes */
+    public synchronized int size() {
+        return indexes.size();
+    }
+}
@@ -39,6 +39,39 @@ public class Label {
         return md5;
     }
 
+    /** @return true if the lavendelized path contains the md5, so different content never ends up under the same path */
+    public boolean isContentAddressed() {
+        String hex;
+
+        hex = Hex.encodeString(md5);
+        return hex.length() > 3 && lavendelizedPath.contains(hex.substring(0, 3) + "/" + hex.substring(3) + "/");
+    }
+
+    /**
+     * @return label with the folder removed from the content-addressed path, so equal files with equal names share
+     *         one path, whatever module they're from; this label if it's not content-addressed
+     */
+    public Label shared() {
+        String hex;
+        int start;
+        int end;
+
+        hex = Hex.encodeString(md5);
+        if (hex.length() <= 3) {
+            return this;
+        }
+        start = lavendelizedPath.indexOf(hex.substring(0, 3) + "/" + hex.substring(3) + "/");
+        if (start == -1) {
+            return this;
+        }
+        start += hex.length() + 2;
+        end = lavendelizedPath.lastIndexOf('/');
+        if (end < start) {
+            return this;
+        }
+        return new Label(originalPath, lavendelizedPath.substring(0, start) + lavendelizedPath.substring(end + 1), md5);
+    }
+
     public String toString() {
         return String.format("Label [originalPath=%s, lavendelizedPath=%s, md5=%s]", originalPath, lavendelizedPath, md5);
     }
@@ -0,0 +1,183 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.config.Parallel;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local journal of the files a publish uploaded, per host. The journal is deleted when the publish commits; if it dies
+ * before, the next publish of the same index can resume: files in the journal are not uploaded again to that host.
+ *
+ * Uploaded files are not referenced until the commit, so fsck -gc removes them after a grace period; records older
+ * than half of it are ignored. The last records of every host are checked to exist on the host, otherwise all records
+ * of this host are ignored.
+ *
+ * Journal format, one line per uploaded file:
+ *   millis md5 docroot path
+ */
+public class Progress {
+    private static final Logger LOG = LoggerFactory.getLogger(Progress.class);
+
+    /** records per host checked when resuming */
+    private static final int TAIL = 16;
+
+    /**
+     * @param docroots docroot of every host
+     * @param resume false to discard existing records
+     * @param graceMinutes how long unreferenced files are kept
+     */
+    public static Progress open(FileNode file, List<Node> docroots, boolean resume, int graceMinutes) throws IOException {
+        Progress result;
+
+        result = new Progress(file, graceMinutes * 60L * 1000 / 2);
+        for (Node docroot : docroots) {
+            result.done.put(docroot.getURI().toString(), new LinkedHashMap<String, String>());
+        }
+        if (resume && file.exists()) {
+            result.read();
+            result.verify(docroots);
+        }
+        result.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return result;
+    }
+
+    //--
+
+    private final FileNode file;
+    /** millis to trust records */
+    private final long maxAge;
+    /** md5 by path, in upload order, by docroot uri */
+    private final Map<String, Map<String, String>> done;
+    private Writer writer;
+
+    private Progress(FileNode file, long maxAge) {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.done = new HashMap<>();
+        this.writer = null;
+    }
+
+    private void read() throws IOException {
+        long limit;
+        String[] lines;
+        String[] fields;
+        Map<String, String> host;
+
+        limit = System.currentTimeMillis() - maxAge;
+        lines = file.readString().split("\n", -1);
+        // the last element is empty, or a line that was cut off
+        for (String line : Arrays.asList(lines).subList(0, lines.length - 1)) {
+            fields = line.split(" ", 4);
+            if (fields.length != 4) {
+                throw new IOException(file + ": invalid line: " + line);
+            }
+            host = done.get(fields[2]);
+            if (host != null && Long.parseLong(fields[0]) >= limit) {
+                host.remove(fields[3]);
+                host.put(fields[3], fields[1]);
+            }
+        }
+    }
+
+    private void verify(List<Node> docroots) throws IOException {
+        List<Boolean> ok;
+        Node docroot;
+        Map<String, String> host;
+
+        ok = Parallel.run("verify uploads", docroots, 0, new Parallel.Task<Node, Boolean>() {
+            @Override
+            public Boolean invoke(Node docroot) throws IOException {
+                List<String> paths;
+
+                paths = new ArrayList<>(done.get(docroot.getURI().toString()).keySet());
+                for (String path : paths.subList(Math.max(0, paths.size() - TAIL), paths.size())) {
+                    if (!docroot.join(path).exists()) {
+                        LOG.info(docroot.getURI() + ": not found: " + path);
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        for (int i = 0; i < ok.size(); i++) {
+            docroot = docroots.get(i);
+            host = done.get(docroot.getURI().toString());
+            if (ok.get(i)) {
+                LOG.info(docroot.getURI() + ": resuming after " + host.size() + " uploaded files");
+            } else {
+                host.clear();
+            }
+        }
+    }
+
+    /** @return true if the file was uploaded to this docroot */
+    public synchronized boolean isDone(Node docroot, String path, byte[] md5) {
+        Map<String, String> host;
+
+        host = done.get(docroot.getURI().toString());
+        return host != null && Hex.encodeString(md5).equals(host.get(path));
+    }
+
+    /** records files uploaded to the docroot; may be called by multiple threads */
+    public synchronized void record(Node docroot, Map<String, byte[]> files) throws IOException {
+        String millis;
+        String uri;
+
+        if (writer == null) {
+            throw new IllegalStateException("closed");
+        }
+        millis = Long.toString(System.currentTimeMillis());
+        uri = docroot.getURI().toString();
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            if (entry.getKey().indexOf('\n') != -1) {
+                continue;
+            }
+            writer.write(millis + " " + Hex.encodeString(entry.getValue()) + " " + uri + " " + entry.getKey() + "\n");
+        }
+        // make records survive if the publish is killed
+        writer.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /** after committing */
+    public void delete() throws IOException {
+        close();
+        file.deleteFileOpt();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.fs.ssh.SshNode;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Runs shell scripts on the host of a directory, with stdin streamed by the caller. */
+public abstract class Shell {
+    /** @return null if the directory does not support shell scripts */
+    public static Shell createOpt(Node dir) {
+        if (dir instanceof SshNode) {
+            return new Ssh((SshNode) dir);
+        }
+        if (dir instanceof FileNode) {
+            return new Local((FileNode) dir);
+        }
+        return null;
+    }
+
+    public static String quote(String str) {
+        return "'" + str.replace("'", "'\\''") + "'";
+    }
+
+    /** Writes stdin of a script */
+    public interface Input {
+        void write(OutputStream dest) throws IOException;
+    }
+
+    /** Receives stdout of a script, line by line */
+    public interface Output {
+        void line(String line) throws IOException;
+    }
+
+    public static final Input NO_INPUT = new Input() {
+        @Override
+        public void write(OutputStream dest) {
+        }
+    };
+
+    //--
+
+    /** absolute path of the directory on its host */
+    public final String directory;
+
+    protected Shell(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Runs the script with sh; throws an exception if it does not exit with 0.
+     *
+     * @param what for error messages
+     * @return stdout of the script
+     */
+    public String exec(String what, String script, Input input) throws IOException {
+        final StringBuilder result;
+
+        result = new StringBuilder();
+        exec(what, script, input, new Output() {
+            @Override
+            public void line(String line) {
+                result.append(line).append('\n');
+            }
+        });
+        return result.toString();
+    }
+
+    /**
+     * Runs the script with sh, output is passed to the caller while the script is running; stdin is written by
+     * another thread, so scripts may output while reading their input. Throws an exception if it does not exit with 0.
+     */
+    public void exec(String what, String script, Input input, Output output) throws IOException {
+        run(what, "sh -c " + quote(script), input, output);
+    }
+
+    protected abstract void run(String what, String command, Input input, Output output) throws IOException;
+
+    /**
+     * Writes stdin and reads stdout.
+     *
+     * @return failure writing stdin; reported after the exit code, because scripts that fail stop reading
+     */
+    protected static IOException transfer(String what, final Input input, final OutputStream stdin, InputStream stdout, Output output)
+            throws IOException {
+        final IOException[] failure;
+        Thread feeder;
+        BufferedReader reader;
+        String line;
+
+        failure = new IOException[1];
+        feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (OutputStream dest = stdin) {
+                    input.write(dest);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        }, what + " input");
+        feeder.setDaemon(true);
+        feeder.start();
+        try {
+            reader = new BufferedReader(new InputStreamReader(stdout, StandardCharsets.UTF_8));
+            while ((line = reader.readLine()) != null) {
+                output.line(line);
+            }
+            feeder.join();
+        } catch (InterruptedException e) {
+            throw new IOException(what + " interrupted", e);
+        } finally {
+            feeder.interrupt();
+        }
+        return failure[0];
+    }
+
+    //--
+
+    private static class Ssh extends Shell {
+        private final SshNode dir;
+
+        public Ssh(SshNode dir) {
+            super("/" + dir.getPath());
+            this.dir = dir;
+        }
+
+        @Override
+        protected void run(String what, String command, Input input, Output output) throws IOException {
+            ChannelExec channel;
+            ByteArrayOutputStream errors;
+            IOException failure;
+
+            errors = new ByteArrayOutputStream();
+            try {
+                channel = dir.getRoot().createChannelExec();
+            } catch (JSchException e) {
+                throw new IOException(dir.getURI() + ": cannot open channel: " + e.getMessage(), e);
+            }
+            try {
+                channel.setCommand(command);
+                channel.setErrStream(errors);
+                try (OutputStream stdin = channel.getOutputStream(); InputStream stdout = channel.getInputStream()) {
+                    channel.connect();
+                    failure = transfer(what, input, stdin, stdout, output);
+                }
+                while (!channel.isClosed()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        throw new IOException(what + " interrupted", e);
+                    }
+                }
+                if (channel.getExitStatus() != 0) {
+                    throw new IOException(dir.getURI() + ": " + what + " failed with exit code " + channel.getExitStatus()
+                            + ": " + errors.toString());
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            } catch (JSchException e) {
+                throw new IOException(dir.getURI() + ": " + what + " failed: " + e.getMessage(), e);
+            } finally {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /** for local directories; mainly to test scripts */
+    private static class Local extends Shell {
+        private final FileNode dir;
+
+        public Local(FileNode dir) {
+            super(dir.getAbsolute());
+            this.dir = dir;
+        }
+
+        @Override
+        protected void run(String what, String command, Input input, Output output) throws IOException {
+            ProcessBuilder builder;
+            FileNode errors;
+            Process process;
+            IOException failure;
+            int exit;
+
+            errors = dir.getWorld().getTemp().createTempFile();
+            try {
+                builder = new ProcessBuilder("sh", "-c", command);
+                builder.redirectError(errors.toPath().toFile());
+                process = builder.start();
+                try (InputStream stdout = process.getInputStream()) {
+                    failure = transfer(what, input, process.getOutputStream(), stdout, output);
+                } catch (IOException | RuntimeException e) {
+                    process.destroy();
+                    throw e;
+                }
+                try {
+                    exit = process.waitFor();
+                } catch (InterruptedException e) {
+                    process.destroy();
+                    throw new IOException(what + " interrupted", e);
+                }
+                if (exit != 0) {
+                    throw new IOException(dir + ": " + what + " failed with exit code " + exit + ": " + errors.readString());
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            } finally {
+                errors.deleteFile();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.config.Parallel;
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.sushi.fs.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Compares md5 sums of the files in a docroot with the expected ones. Batches of files are hashed remotely, spread
+ * over several channels; results are reported while they arrive. Files verified before are skipped as long as their
+ * size and last modified time are unchanged.
+ */
+public class Verifier {
+    /** Receives results while the check is running; may be called by multiple threads */
+    public interface Listener {
+        /** @param computed null if the file is missing or not readable */
+        void mismatch(String path, String expected, String computed) throws IOException;
+    }
+
+    private static final int BATCH = 500;
+
+    //--
+
+    /** null to hash all files */
+    private final Md5Cache cache;
+    /** true for hosts with bsd tools, which cannot report size and modified time */
+    private final boolean mac;
+    private final int channels;
+
+    /** @param channels scripts to run in parallel, spread over the sessions of the host */
+    public Verifier(Md5Cache cache, boolean mac, int channels) {
+        this.cache = mac ? null : cache;
+        this.mac = mac;
+        this.channels = channels;
+    }
+
+    /**
+     * @param sessions docroot in every session of the host
+     * @param expecteds md5 by path, relative to the docroot
+     * @return number of files hashed; files with unchanged size and modified time were verified before
+     */
+    public int run(final List<Node> sessions, Map<String, byte[]> expecteds, final Listener listener) throws IOException {
+        final Map<String, String> hexes;
+        Map<String, Stat> stats;
+        Stat stat;
+        byte[] cached;
+        final Queue<List<String>> batches;
+        List<String> batch;
+        final Map<String, Stat> verified;
+        List<Integer> workers;
+        int count;
+        String expected;
+
+        hexes = new HashMap<>();
+        stats = cache == null ? null : stat(sessions.get(0));
+        verified = new HashMap<>();
+        batches = new ConcurrentLinkedQueue<>();
+        batch = new ArrayList<>();
+        count = 0;
+        for (Map.Entry<String, byte[]> entry : expecteds.entrySet()) {
+            expected = Hex.encodeString(entry.getValue());
+            if (stats != null) {
+                stat = stats.get(entry.getKey());
+                if (stat == null) {
+                    listener.mismatch(entry.getKey(), expected, null);
+                    continue;
+                }
+                cached = cache.lookup(entry.getKey(), stat.size, stat.modified);
+                if (cached != null && Hex.encodeString(cached).equals(expected)) {
+                    continue;
+                }
+                verified.put(entry.getKey(), stat);
+            }
+            if (entry.getKey().indexOf('\n') != -1) {
+                throw new IOException("cannot check path with newline: " + entry.getKey());
+            }
+            hexes.put(entry.getKey(), expected);
+            batch.add(entry.getKey());
+            if (batch.size() == BATCH) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(channels, batches.size()); i++) {
+            workers.add(i);
+        }
+        for (int i : Parallel.run("md5 check", workers, 0, new Parallel.Task<Integer, Integer>() {
+            @Override
+            public Integer invoke(Integer worker) throws IOException {
+                Node docroot;
+                List<String> batch;
+                int result;
+
+                docroot = sessions.get(worker % sessions.size());
+                result = 0;
+                while ((batch = batches.poll()) != null) {
+                    hash(docroot, batch, hexes, verified, listener);
+                    result += batch.size();
+                }
+                return result;
+            }
+        })) {
+            count += i;
+        }
+        if (cache != null) {
+            cache.retainAll(expecteds.keySet());
+            cache.save();
+        }
+        return count;
+    }
+
+    private void hash(Node docroot, final List<String> batch, final Map<String, String> hexes,
+                      final Map<String, Stat> verified, final Listener listener) throws IOException {
+        Shell shell;
+        final Set<String> missing;
+
+        shell = Shell.createOpt(docroot);
+        if (shell == null) {
+            throw new UnsupportedOperationException("md5 check on " + docroot.getClass());
+        }
+        missing = new HashSet<>(batch);
+        // md5sum exits with 1 for missing files, xargs reports this as 123; they're reported as missing below
+        shell.exec("md5 check", "cd " + Shell.quote(shell.directory) + " && tr '\\n' '\\0' | xargs -0 "
+                + (mac ? "md5 -r" : "md5sum --") + "; code=$?; test $code -eq 0 -o $code -eq 123", new Shell.Input() {
+            @Override
+            public void write(OutputStream dest) throws IOException {
+                for (String path : batch) {
+                    dest.write((path + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }, new Shell.Output() {
+            @Override
+            public void line(String line) throws IOException {
+                String computed;
+                String path;
+                String expected;
+                Stat stat;
+
+                if (line.startsWith("\\")) {
+                    // md5sum escapes paths with backslash
+                    line = line.substring(1);
+                    computed = line.substring(0, 32);
+                    path = line.substring(34).replace("\\\\", "\\");
+                } else {
+                    computed = line.substring(0, 32);
+                    path = line.substring(mac ? 33 : 34);
+                }
+                expected = hexes.get(path);
+                if (expected == null || !missing.remove(path)) {
+                    throw new IOException("unexpected md5 output: " + line);
+                }
+                if (expected.equals(computed)) {
+                    stat = verified.get(path);
+                    if (stat != null) {
+                        cache.put(path, stat.size, stat.modified, Hex.decode(computed.toCharArray()));
+                    }
+                } else {
+                    listener.mismatch(path, expected, computed);
+                }
+            }
+        });
+        for (String path : missing) {
+            listener.mismatch(path, hexes.get(path), null);
+        }
+    }
+
+    /** @return size and last modified time of all files by path */
+    private static Map<String, Stat> stat(Node docroot) throws IOException {
+        Shell shell;
+        final Map<String, Stat> result;
+
+        shell = Shell.createOpt(docroot);
+        if (shell == null) {
+            throw new UnsupportedOperationException("md5 check on " + docroot.getClass());
+        }
+        result = new HashMap<>();
+        shell.exec("stat", "cd " + Shell.quote(shell.directory) + " && find . -type f -printf '%T@ %s %P\\n'", Shell.NO_INPUT,
+                new Shell.Output() {
+            @Override
+            public void line(String line) throws IOException {
+                String[] fields;
+
+                fields = line.split(" ", 3);
+                if (fields.length != 3) {
+                    throw new IOException("unexpected find output: " + line);
+                }
+                result.put(fields[2], new Stat(Long.parseLong(fields[1]), millis(fields[0])));
+            }
+        });
+        return result;
+    }
+
+    /** @param seconds with fraction, as printed by find */
+    static long millis(String seconds) {
+        int idx;
+        String fraction;
+
+        idx = seconds.indexOf('.');
+        if (idx == -1) {
+            return Long.parseLong(seconds) * 1000;
+        }
+        fraction = (seconds.substring(idx + 1) + "000").substring(0, 3);
+        return Long.parseLong(seconds.substring(0, idx)) * 1000 + Long.parseLong(fraction);
+    }
+
+    private static class Stat {
+        public final long size;
+        public final long modified;
+
+        public Stat(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
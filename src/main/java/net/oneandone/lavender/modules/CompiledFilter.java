@@ -0,0 +1,185 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.filter.Filter;
+
+/**
+ * Include/exclude globs of a sushi filter, compiled once. If all patterns have the form "**&#47;*suffix" - which is what
+ * all default includes look like - paths are matched with a single pass over their segments using suffix tries.
+ * Otherwise, matching falls back to the original sushi filter. In both cases, the semantics are those of sushi's
+ * Filter.matches: a path matches if one of its segments is matched by an include and not by an exclude. Like all
+ * filters in lavender, matching is case-sensitive; predicates and depth restrictions are not supported. Immutable,
+ * thus thread-safe.
+ */
+public class CompiledFilter {
+    private static final String ANY_FILE = "**/*";
+
+    public static CompiledFilter compile(Filter filter) {
+        Suffixes includes;
+        Suffixes excludes;
+
+        includes = Suffixes.compileOpt(filter.getIncludes());
+        excludes = Suffixes.compileOpt(filter.getExcludes());
+        if (includes == null || excludes == null) {
+            return new CompiledFilter(new Filter().include(filter.getIncludes()).exclude(filter.getExcludes()), null, null);
+        } else {
+            return new CompiledFilter(null, includes, excludes);
+        }
+    }
+
+    //--
+
+    /** null if the suffix tries are used */
+    private final Filter fallback;
+    private final Suffixes includes;
+    private final Suffixes excludes;
+
+    private CompiledFilter(Filter fallback, Suffixes includes, Suffixes excludes) {
+        this.fallback = fallback;
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    public boolean matches(String path) {
+        int prev;
+        int idx;
+
+        if (fallback != null) {
+            return fallback.matches(path);
+        }
+        prev = 0;
+        while (true) {
+            idx = path.indexOf('/', prev);
+            if (idx == -1) {
+                idx = path.length();
+            }
+            if (includes.matches(path, prev, idx) && !excludes.matches(path, prev, idx)) {
+                return true;
+            }
+            if (idx == path.length()) {
+                return false;
+            }
+            prev = idx + 1;
+        }
+    }
+
+    //--
+
+    /** Trie over reversed suffixes. */
+    private static class Suffixes {
+        /** @return null if one of the patterns is not of the form "**&#47;*suffix" with a literal suffix */
+        public static Suffixes compileOpt(String[] patterns) {
+            Suffixes result;
+            String suffix;
+
+            result = new Suffixes();
+            for (String pattern : patterns) {
+                suffix = suffixOpt(pattern);
+                if (suffix == null) {
+                    return null;
+                }
+                result.add(suffix);
+            }
+            return result;
+        }
+
+        private static String suffixOpt(String pattern) {
+            char c;
+
+            if (!pattern.startsWith(ANY_FILE)) {
+                return null;
+            }
+            pattern = pattern.substring(ANY_FILE.length());
+            for (int i = 0, max = pattern.length(); i < max; i++) {
+                c = pattern.charAt(i);
+                if (c == '*' || c == '?' || c == '[' || c == '/' || c == '\\') {
+                    return null;
+                }
+            }
+            return pattern;
+        }
+
+        private char[] chars;
+        private Suffixes[] children;
+        private boolean terminal;
+
+        public Suffixes() {
+            this.chars = new char[0];
+            this.children = new Suffixes[0];
+            this.terminal = false;
+        }
+
+        public void add(String suffix) {
+            Suffixes current;
+
+            current = this;
+            for (int i = suffix.length() - 1; i >= 0; i--) {
+                current = current.childOrCreate(suffix.charAt(i));
+            }
+            current.terminal = true;
+        }
+
+        /** @return true if the segment between start (inclusive) and end (exclusive) ends with one of the suffixes */
+        public boolean matches(String path, int start, int end) {
+            Suffixes current;
+
+            current = this;
+            if (current.terminal) {
+                return true;
+            }
+            for (int i = end - 1; i >= start; i--) {
+                current = current.child(path.charAt(i));
+                if (current == null) {
+                    return false;
+                }
+                if (current.terminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Suffixes child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Suffixes childOrCreate(char c) {
+            Suffixes result;
+            char[] newChars;
+            Suffixes[] newChildren;
+
+            result = child(c);
+            if (result == null) {
+                result = new Suffixes();
+                newChars = new char[chars.length + 1];
+                System.arraycopy(chars, 0, newChars, 0, chars.length);
+                newChars[chars.length] = c;
+                newChildren = new Suffixes[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[children.length] = result;
+                chars = newChars;
+                children = newChildren;
+            }
+            return result;
+        }
+    }
+}
@@ -23,21 +23,25 @@ import net.oneandone.sushi.fs.filter.Action;
 import net.oneandone.sushi.fs.filter.Filter;
 import net.oneandone.sushi.fs.filter.Predicate;
 import net.oneandone.sushi.xml.Selector;
+import net.oneandone.sushi.xml.Xml;
 import net.oneandone.sushi.xml.XmlException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class DefaultModule extends Module<Node> {
     private static final Logger LOG = LoggerFactory.getLogger(Module.class);
@@ -45,9 +49,55 @@ public abstract class DefaultModule extends Module<Node> {
     private static final String RESOURCE_INDEX = "META-INF/pustefix-resource.index";
 
 
-    public static List<Module> fromWebapp(FileNode cache, boolean prod, Node webapp, String svnUsername, String svnPassword) throws IOException, SAXException, XmlException {
+    /** number of threads to discover module jars */
+    private static final int DISCOVERY_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final String WEB_INF_LIB = "WEB-INF/lib/";
+
+    private static final String[] DESCRIPTOR_ENTRIES = { "META-INF/pustefix-module.xml",
+            LavenderProperties.MODULE_PROPERTIES, "META-INF/pominfo.properties", RESOURCE_INDEX };
+
+    /**
+     * For war publishing. The war and its jars are listed from their central directories.
+     *
+     * @param budget limits the heap used for jars in the war
+     * @param hashes md5 sums of war and jar entries, keyed on resource path, size and crc
+     */
+    public static List<Module<?>> fromWar(FileNode cache, FileNode war, MemoryBudget budget, Md5Cache hashes,
+                                       String svnUsername, String svnPassword) throws IOException, SAXException, XmlException {
+        Node webapp;
+        ZipIndex index;
+        List<Node> jars;
+        List<Module<?>> result;
+        WarConfig rootConfig;
+        JarModule root;
+        LavenderProperties lp;
+
+        LOG.trace("scanning " + war);
+        webapp = war.openZip();
+        index = ZipIndex.open(war);
+        jars = new ArrayList<>();
+        for (ZipIndex.Entry entry : index.entries()) {
+            // same as find("WEB-INF/lib/*.jar"), without listing the zip file
+            if (entry.name.startsWith(WEB_INF_LIB) && entry.name.endsWith(".jar") && entry.name.indexOf('/', WEB_INF_LIB.length()) == -1) {
+                jars.add(webapp.join(entry.name));
+            }
+        }
+        lp = LavenderProperties.loadApp(true, webapp);
+        result = new ArrayList<>();
+        rootConfig = WarConfig.fromXml(webapp);
+        // add modules before webapp, because they have a prefix
+        result.addAll(jarModules(cache, rootConfig, true, jars, budget, hashes, svnUsername, svnPassword));
+        root = JarModule.forWar(Docroot.WEB, projectName(webapp), rootConfig, lp.filter, index);
+        root.setMd5Cache(hashes);
+        result.add(root);
+        lp.addModules(cache, true, svnUsername, svnPassword, result, null);
+        return result;
+    }
+
+    public static List<Module<?>> fromWebapp(FileNode cache, boolean prod, Node webapp, String svnUsername, String svnPassword) throws IOException, SAXException, XmlException {
         Node webappSource;
-        List<Module> result;
+        List<Module<?>> result;
         WarConfig rootConfig;
         DefaultModule root;
         LavenderProperties lp;
@@ -57,85 +107,136 @@ public abstract class DefaultModule extends Module<Node> {
         result = new ArrayList<>();
         rootConfig = WarConfig.fromXml(webapp);
         // add modules before webapp, because they have a prefix
-        for (Node jar : webapp.find("WEB-INF/lib/*.jar")) {
-            result.addAll(jarModuleOpt(cache, rootConfig, prod, jar, svnUsername, svnPassword));
-        }
+        result.addAll(jarModules(cache, rootConfig, prod, webapp.find("WEB-INF/lib/*.jar"),
+                new MemoryBudget(MemoryBudget.DEFAULT), null, svnUsername, svnPassword));
         webappSource = lp.live(webapp);
         root = warModule(rootConfig, lp.filter, webappSource);
+        if (!prod) {
+            root.setMd5Cache(Md5Cache.load(cache, webappSource));
+        }
         result.add(root);
         lp.addModules(cache, prod, svnUsername, svnPassword, result, null);
         return result;
     }
 
-    public static List<Module> jarModuleOpt(FileNode cache, WarConfig rootConfig, boolean prod, Node jarOrig,
-                                            String svnUsername, String svnPassword) throws IOException, XmlException, SAXException {
-        Node configFile;
+    /**
+     * Discovers module descriptors of all jars in parallel, then creates the modules sequentially in jar order.
+     * Discovery only reads the jars, it does not touch shared world state (buffer, xml, memory filesystem).
+     */
+    private static List<Module<?>> jarModules(FileNode cache, final WarConfig rootConfig, boolean prod, List<? extends Node> jars,
+                                           final MemoryBudget budget, Md5Cache hashes, String svnUsername, String svnPassword) throws IOException {
+        ExecutorService executor;
+        List<Future<Descriptor>> futures;
+        List<Module<?>> result;
+        Descriptor descriptor;
+
+        result = new ArrayList<>();
+        if (jars.isEmpty()) {
+            return result;
+        }
+        executor = Executors.newFixedThreadPool(Math.min(jars.size(), DISCOVERY_THREADS));
+        try {
+            futures = new ArrayList<>(jars.size());
+            for (final Node jar : jars) {
+                futures.add(executor.submit(new Callable<Descriptor>() {
+                    @Override
+                    public Descriptor call() throws IOException {
+                        // Xml is not thread-safe
+                        return Descriptor.loadOpt(new Xml(), rootConfig, jar, budget);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    descriptor = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    throw new IOException("module discovery interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IOException(jars.get(i) + ": module discovery failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                if (descriptor != null) {
+                    result.addAll(jarModule(cache, prod, jars.get(i), descriptor, hashes, svnUsername, svnPassword));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    public static List<Module<?>> jarModuleOpt(FileNode cache, WarConfig rootConfig, boolean prod, Node jarOrig,
+                                            String svnUsername, String svnPassword) throws IOException {
+        Descriptor descriptor;
+
+        descriptor = Descriptor.loadOpt(jarOrig.getWorld().getXml(), rootConfig, jarOrig, new MemoryBudget(MemoryBudget.DEFAULT));
+        if (descriptor == null) {
+            return new ArrayList<>();
+        }
+        return jarModule(cache, prod, jarOrig, descriptor, null, svnUsername, svnPassword);
+    }
+
+    /** @param hashes null to always compute md5 sums */
+    private static List<Module<?>> jarModule(FileNode cache, boolean prod, Node jarOrig, Descriptor descriptor, Md5Cache hashes,
+                                          String svnUsername, String svnPassword) throws IOException {
         final JarConfig config;
-        List<Module> result;
-        Node jarTmp;
+        List<Module<?>> result;
         final Node jarLive;
-        Module jarModule;
-        Object[] tmp;
+        Module<?> jarModule;
+        DefaultModule liveModule;
+        JarModule zipModule;
         LavenderProperties lp;
-        Node exploded;
         final Filter filter;
-        boolean hasResourceIndex;
 
         result = new ArrayList<>();
+        config = descriptor.config;
+        lp = descriptor.properties(prod);
         if (jarOrig instanceof FileNode) {
-            // TODO: expensive
-            exploded = ((FileNode) jarOrig).openJar();
-            configFile = exploded.join("META-INF/pustefix-module.xml");
-            if (!configFile.exists()) {
-                return result;
-            }
-            try (InputStream src = configFile.createInputStream()) {
-                config = JarConfig.load(jarOrig.getWorld().getXml(), rootConfig, src);
-            }
-            lp = LavenderProperties.loadModuleOpt(prod, exploded);
             if (!prod && lp == null) {
                 // This module has no lavender.properties, and thus pominfo.properties is outdated and thus lavender's live mechanism won't work.
                 // So we ignore this module in devel mode to get requests passed through to pustefix, which can do his old live handling
                 // TODO: report "missing lavender.properties" error when all modules have been updated ...
+                descriptor.release();
                 return result;
             }
-            hasResourceIndex = exploded.join(RESOURCE_INDEX).exists();
-            if (prod || lp == null) {
-                jarTmp = jarOrig;
-            } else {
-                jarTmp = lp.live(jarOrig);
-            }
-            if (jarTmp.isFile()) {
-                jarLive = ((FileNode) jarTmp).openJar();
-            } else {
-                jarLive = jarTmp;
-            }
-            filter = lp == null ? LavenderProperties.defaultFilter() : lp.filter;
-            jarModule = new DefaultModule(Docroot.WEB, config.getModuleName(), true, config.getResourcePathPrefix(), "", filter) {
-                @Override
-                protected Map<String, Node> scan(Filter filter) throws IOException {
-                    return files(filter, config, jarLive);
-                }
-            };
         } else {
             if (!prod) {
                 throw new UnsupportedOperationException("live mechanism not supported for jar streams");
             }
-            tmp = DefaultModule.fromJarStream(prod, Docroot.WEB, rootConfig, jarOrig);
-            if (tmp == null) {
-                // no pustefix module config
-                return result;
-            }
-            jarModule = (Module) tmp[0];
-            lp = (LavenderProperties) tmp[1];
-            config = (JarConfig) tmp[2];
-            hasResourceIndex = (Boolean) tmp[3];
         }
-        if (lp == null && hasResourceIndex) {
+        if (lp == null && descriptor.hasResourceIndex) {
             // ok - we have a recent parent pom without lavender properties
             // -> the has not enabled lavender for this module
+            descriptor.release();
             return result;
         }
+        filter = lp == null ? LavenderProperties.defaultFilter() : lp.filter;
+        if (jarOrig instanceof FileNode && !prod && lp != null) {
+            jarLive = lp.live(jarOrig);
+            if (jarLive.equals(jarOrig)) {
+                jarModule = JarModule.forJar(Docroot.WEB, config, filter, descriptor.index);
+            } else if (jarLive instanceof FileNode && jarLive.isFile()) {
+                jarModule = JarModule.forJar(Docroot.WEB, config, filter, ZipIndex.open((FileNode) jarLive));
+            } else {
+                liveModule = new DefaultModule(Docroot.WEB, config.getModuleName(), true, config.getResourcePathPrefix(), "", filter) {
+                    @Override
+                    protected Map<String, Node> scan(Filter filter) throws IOException {
+                        return files(filter, config, jarLive);
+                    }
+                };
+                liveModule.setMd5Cache(Md5Cache.load(cache, jarLive));
+                jarModule = liveModule;
+            }
+        } else {
+            zipModule = JarModule.forJar(Docroot.WEB, config, filter, descriptor.index);
+            zipModule.setMd5Cache(hashes);
+            jarModule = zipModule;
+        }
         // continue without lavender.properties -- we have to support this mode for a some time ... :(
         result.add(jarModule);
         if (lp != null) {
@@ -144,10 +245,76 @@ public abstract class DefaultModule extends Module<Node> {
         return result;
     }
 
-    private static Map<String, Node> files(final Filter filter, final JarConfig config, final Node exploded) throws IOException {
+    /** Module descriptor entries of a jar, together with the jar's index. */
+    private static class Descriptor {
+        /** @return null if the jar has no module descriptor */
+        public static Descriptor loadOpt(Xml xml, WarConfig rootConfig, Node jar, MemoryBudget budget) throws IOException {
+            ZipIndex index;
+            byte[] moduleXml;
+            JarConfig config;
+
+            if (jar instanceof FileNode) {
+                index = ZipIndex.open((FileNode) jar);
+            } else {
+                index = ZipIndex.load(jar, budget);
+            }
+            moduleXml = index.readOpt(DESCRIPTOR_ENTRIES[0]);
+            if (moduleXml == null) {
+                budget.release(index.getHeap());
+                return null;
+            }
+            try (InputStream src = new ByteArrayInputStream(moduleXml)) {
+                config = JarConfig.load(xml, rootConfig, src);
+            } catch (SAXException | XmlException e) {
+                budget.release(index.getHeap());
+                throw new IOException(jar + ": cannot load module descriptor:" + e.getMessage(), e);
+            }
+            return new Descriptor(jar.getWorld(), budget, index, config, index.readOpt(DESCRIPTOR_ENTRIES[1]),
+                    index.readOpt(DESCRIPTOR_ENTRIES[2]), index.lookup(DESCRIPTOR_ENTRIES[3]) != null);
+        }
+
+        private final World world;
+        private final MemoryBudget budget;
+        public final ZipIndex index;
+        public final JarConfig config;
+        /** null if not found */
+        private final byte[] properties;
+        /** null if not found */
+        private final byte[] pominfo;
+        public final boolean hasResourceIndex;
+
+        public Descriptor(World world, MemoryBudget budget, ZipIndex index, JarConfig config, byte[] properties, byte[] pominfo,
+                          boolean hasResourceIndex) {
+            this.world = world;
+            this.budget = budget;
+            this.index = index;
+            this.config = config;
+            this.properties = properties;
+            this.pominfo = pominfo;
+            this.hasResourceIndex = hasResourceIndex;
+        }
+
+        /** call if the index is not used for a module */
+        public void release() {
+            budget.release(index.getHeap());
+        }
+
+        /** @return null if the jar has no lavender properties */
+        public LavenderProperties properties(boolean prod) throws IOException {
+            if (properties == null) {
+                return null;
+            }
+            return LavenderProperties.parse(prod, world.memoryNode(properties).readProperties(),
+                    pominfo == null ? null : world.memoryNode(pominfo).readProperties());
+        }
+    }
+
+    private static Map<String, Node> files(Filter filter, final JarConfig config, final Node exploded) throws IOException {
         Filter f;
+        final CompiledFilter compiled;
         final Map<String, Node> result;
 
+        compiled = CompiledFilter.compile(filter);
         result = new HashMap<>();
         f = exploded.getWorld().filter().predicate(Predicate.FILE).includeAll();
         f.invoke(exploded, new Action() {
@@ -166,11 +333,9 @@ public abstract class DefaultModule extends Module<Node> {
                 String resourcePath;
 
                 path = node.getRelative(exploded);
-                if (filter.matches(path)) {
-                    resourcePath = config.getPath(path);
-                    if (resourcePath != null) {
-                        result.put(resourcePath, node);
-                    }
+                resourcePath = config.getPath(path);
+                if (resourcePath != null && compiled.matches(path)) {
+                    result.put(resourcePath, node);
                 }
             }
         });
@@ -180,29 +345,33 @@ public abstract class DefaultModule extends Module<Node> {
     //--
 
     public static DefaultModule warModule(final WarConfig config, final Filter filter, final Node webapp) throws IOException {
+        return new DefaultModule(Docroot.WEB, projectName(webapp), true, "", "", filter) {
+            @Override
+            protected Map<String, Node> scan(Filter filter) throws IOException {
+                return scanExploded(config, filter, webapp);
+            }
+        };
+    }
+
+    private static String projectName(Node webapp) throws IOException {
         Element root;
         Selector selector;
-        String name;
 
         try {
             root = webapp.join("WEB-INF/project.xml").readXml().getDocumentElement();
             selector = webapp.getWorld().getXml().getSelector();
-            name = selector.string(root, "project/name");
-            return new DefaultModule(Docroot.WEB, name, true, "", "", filter) {
-                @Override
-                protected Map<String, Node> scan(Filter filter) throws IOException {
-                    return scanExploded(config, filter, webapp);
-                }
-            };
+            return selector.string(root, "project/name");
         } catch (SAXException | XmlException e) {
             throw new IOException("cannot load project descriptor: " + e);
         }
     }
 
-    private static Map<String, Node> scanExploded(final WarConfig global, final Filter filter, final Node exploded) throws IOException {
+    private static Map<String, Node> scanExploded(final WarConfig global, Filter filter, final Node exploded) throws IOException {
         Filter f;
+        final CompiledFilter compiled;
         final Map<String, Node> result;
 
+        compiled = CompiledFilter.compile(filter);
         result = new HashMap<>();
         f = exploded.getWorld().filter().predicate(Predicate.FILE).includeAll();
         f.invoke(exploded, new Action() {
@@ -220,7 +389,7 @@ public abstract class DefaultModule extends Module<Node> {
                 String path;
 
                 path = node.getRelative(exploded);
-                if (filter.matches(path) && global.isPublicResource(path)) {
+                if (global.isPublicResource(path) && compiled.matches(path)) {
                     result.put(path, node);
                 }
             }
@@ -230,75 +399,50 @@ public abstract class DefaultModule extends Module<Node> {
 
     //--
 
-    /** To properly make jars available as a module, I have to load them into memory when the jar is itself contained in a war. */
-    public static Object[] fromJarStream(boolean prod, String type, WarConfig parent, Node jar) throws IOException {
-        JarConfig config;
-        Node[] loaded;
-        Filter filter;
-        World world;
-        ZipEntry entry;
-        String path;
-        ZipInputStream src;
-        Node root;
-        Node child;
-        Node propertyNode;
-        final Map<String, Node> files;
-        String resourcePath;
-        LavenderProperties lp;
-
-        loaded = LavenderProperties.loadStreamNodes(jar, "META-INF/pustefix-module.xml",
-                LavenderProperties.MODULE_PROPERTIES, "META-INF/pominfo.properties", RESOURCE_INDEX);
-        if (loaded[0] == null) {
-            return null;
-        }
-        try (InputStream configSrc = loaded[0].createInputStream()) {
-            config = JarConfig.load(jar.getWorld().getXml(), parent, configSrc);
-        } catch (SAXException | XmlException e) {
-            throw new IOException(jar + ": cannot load module descriptor:" + e.getMessage(), e);
-        }
-        propertyNode = loaded[1];
-        if (propertyNode == null) {
-            filter = LavenderProperties.defaultFilter();
-            lp = null;
-        } else {
-            lp = LavenderProperties.loadNode(prod, propertyNode, loaded[2]);
-            filter = lp.filter;
-        }
-        world = jar.getWorld();
-        root = world.getMemoryFilesystem().root().node(UUID.randomUUID().toString(), null).mkdir();
-        src = new ZipInputStream(jar.createInputStream());
-        files = new HashMap<>();
-        while ((entry = src.getNextEntry()) != null) {
-            path = entry.getName();
-            if (!entry.isDirectory()) {
-                if ((resourcePath = config.getPath(path)) != null && filter.matches(path)) {
-                    child = root.join(path);
-                    child.getParent().mkdirsOpt();
-                    world.getBuffer().copy(src, child);
-                    files.put(resourcePath, child);
-                }
-            }
-        }
-        return new Object[] { new DefaultModule(type, config.getModuleName(), true, config.getResourcePathPrefix(), "", filter) {
-            public Map<String, Node> scan(Filter filter) {
-                // no need to re-scan files from memory
-                return files;
-            }
-        }, lp, config, loaded[3] != null};
-    }
-
-    //--
+    /** null to compute md5 sums on every start */
+    private Md5Cache md5Cache;
 
     public DefaultModule(String type, String name, boolean lavendelize, String resourcePathPrefix, String targetPathPrefix, Filter filter) throws IOException {
         super(type, name, lavendelize, resourcePathPrefix, targetPathPrefix, filter);
+        this.md5Cache = null;
+    }
+
+    public void setMd5Cache(Md5Cache md5Cache) {
+        this.md5Cache = md5Cache;
     }
 
     protected Resource createResource(String resourcePath, Node file) throws IOException {
-        return DefaultResource.forNode(file, resourcePath);
+        final String path;
+        final long lastModified;
+        final long size;
+
+        if (md5Cache == null) {
+            return DefaultResource.forNode(file, resourcePath);
+        }
+        path = resourcePath.substring(getResourcePathPrefix().length());
+        lastModified = file.getLastModified();
+        size = file.length();
+        return new DefaultResource(file.getURI().toString(), resourcePath, lastModified, file, null, md5Cache.lookup(path, size, lastModified)) {
+            @Override
+            public byte[] getMd5() throws IOException {
+                if (lazyMd5 == null) {
+                    md5Cache.put(path, size, lastModified, super.getMd5());
+                }
+                return lazyMd5;
+            }
+        };
     }
 
     @Override
-    public void saveCaches() {
-        // nothing to do
+    public void saveCaches() throws IOException {
+        Map<String, Node> files;
+
+        if (md5Cache != null) {
+            files = getFilesOpt();
+            if (files != null) {
+                md5Cache.retainAll(files.keySet());
+            }
+            md5Cache.save();
+        }
     }
 }
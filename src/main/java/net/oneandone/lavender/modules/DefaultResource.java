@@ -17,8 +17,14 @@ package net.oneandone.lavender.modules;
 
 import net.oneandone.sushi.fs.GetLastModifiedException;
 import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 public class DefaultResource extends Resource {
     public static DefaultResource forBytes(byte[] bytes, String path) {
@@ -73,11 +79,36 @@ public class DefaultResource extends Resource {
 
     public byte[] getMd5() throws IOException {
         if (lazyMd5 == null) {
-            lazyMd5 = md5(getData());
+            if (dataBytes == null) {
+                // don't keep the data in memory, it's not needed if the resource is unchanged
+                try (InputStream src = open()) {
+                    lazyMd5 = md5(src);
+                }
+            } else {
+                lazyMd5 = md5(dataBytes);
+            }
         }
         return lazyMd5;
     }
 
+    @Override
+    public long getSize() throws IOException {
+        return dataBytes == null ? dataNode.length() : dataBytes.length;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return dataBytes == null ? dataNode.createInputStream() : new ByteArrayInputStream(dataBytes);
+    }
+
+    @Override
+    public ReadableByteChannel openChannel() throws IOException {
+        if (dataBytes == null && dataNode instanceof FileNode) {
+            return FileChannel.open(((FileNode) dataNode).toPath(), StandardOpenOption.READ);
+        }
+        return super.openChannel();
+    }
+
     public byte[] getData() throws IOException {
         if (dataBytes == null) {
             dataBytes = dataNode.readBytes();
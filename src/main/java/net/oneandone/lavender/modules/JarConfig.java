@@ -39,6 +39,7 @@ public class JarConfig {
 
     /** trimmed, without heading slash, with tailing slash */
     private final List<String> statics;
+    private final PathPrefixes compiledStatics;
 
     public static JarConfig load(Xml xml, WarConfig parent, InputStream src) throws IOException, SAXException, XmlException {
         String path;
@@ -69,6 +70,7 @@ public class JarConfig {
         this.global = global;
         this.name = name;
         this.statics = statics;
+        this.compiledStatics = new PathPrefixes(statics);
     }
 
     public String getModuleName() {
@@ -92,10 +94,8 @@ public class JarConfig {
             resourceName = resourceName.substring(PUSTEFIX_INF.length());
 
             // statics is relative to PUSTEFIX-INF - so it's not checked, when the resource name does not start with it:
-            for (String path : statics) {
-                if (resourceName.startsWith(path)) {
-                    return resourceName;
-                }
+            if (compiledStatics.matches(resourceName)) {
+                return resourceName;
             }
         }
         // note that PUSTEFIX-INF has been stripped from the beginning
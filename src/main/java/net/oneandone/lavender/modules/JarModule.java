@@ -0,0 +1,96 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.filter.Filter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Resources of a jar or war, listed from its central directory. Nothing is extracted until a resource is actually read. */
+public abstract class JarModule extends Module<ZipIndex.Entry> {
+    public static JarModule forJar(String type, final JarConfig config, Filter filter, ZipIndex index) {
+        return new JarModule(type, config.getModuleName(), config.getResourcePathPrefix(), filter, index) {
+            @Override
+            protected String getPath(String entryName) {
+                return config.getPath(entryName);
+            }
+        };
+    }
+
+    public static JarModule forWar(String type, String name, final WarConfig config, Filter filter, ZipIndex index) {
+        return new JarModule(type, name, "", filter, index) {
+            @Override
+            protected String getPath(String entryName) {
+                return config.isPublicResource(entryName) ? entryName : null;
+            }
+        };
+    }
+
+    //--
+
+    private final ZipIndex index;
+    /** null to always compute md5 sums */
+    private Md5Cache md5Cache;
+
+    public JarModule(String type, String name, String resourcePathPrefix, Filter filter, ZipIndex index) {
+        super(type, name, true, resourcePathPrefix, "", filter);
+        this.index = index;
+        this.md5Cache = null;
+    }
+
+    public ZipIndex getIndex() {
+        return index;
+    }
+
+    /** @param md5Cache is keyed on resource paths, thus it may be shared between modules; caller is responsible to save it */
+    public void setMd5Cache(Md5Cache md5Cache) {
+        this.md5Cache = md5Cache;
+    }
+
+    /** @return null if not public */
+    protected abstract String getPath(String entryName);
+
+    @Override
+    protected Map<String, ZipIndex.Entry> scan(Filter filter) {
+        CompiledFilter compiled;
+        Map<String, ZipIndex.Entry> result;
+        String resourcePath;
+
+        compiled = CompiledFilter.compile(filter);
+        result = new HashMap<>();
+        for (ZipIndex.Entry entry : index.entries()) {
+            if (!entry.isDirectory()) {
+                resourcePath = getPath(entry.name);
+                if (resourcePath != null && compiled.matches(entry.name)) {
+                    result.put(resourcePath, entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected Resource createResource(String resourcePath, ZipIndex.Entry entry) throws IOException {
+        return new JarResource(index, entry, resourcePath, md5Cache);
+    }
+
+    @Override
+    public void saveCaches() {
+        // nothing to do
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** A jar entry; data is inflated on first access. */
+public class JarResource extends Resource {
+    private final ZipIndex index;
+    private final ZipIndex.Entry entry;
+    private final String path;
+    /** may be null */
+    private final Md5Cache md5Cache;
+
+    private byte[] lazyData;
+    private byte[] lazyMd5;
+
+    public JarResource(ZipIndex index, ZipIndex.Entry entry, String path, Md5Cache md5Cache) {
+        this.index = index;
+        this.entry = entry;
+        this.path = path;
+        this.md5Cache = md5Cache;
+        this.lazyData = null;
+        this.lazyMd5 = null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return entry.getLastModified();
+    }
+
+    /** the index is a snapshot of the jar */
+    public boolean isOutdated() {
+        return false;
+    }
+
+    public String getOrigin() {
+        return index.getOrigin() + "!/" + entry.name;
+    }
+
+    /** looks up the md5 by crc and size first; the entry is inflated only if that fails */
+    public byte[] getMd5() throws IOException {
+        if (lazyMd5 == null && md5Cache != null) {
+            lazyMd5 = md5Cache.lookup(path, entry.size, entry.crc);
+        }
+        if (lazyMd5 == null) {
+            if (lazyData == null) {
+                try (InputStream src = open()) {
+                    lazyMd5 = md5(src);
+                }
+            } else {
+                lazyMd5 = md5(lazyData);
+            }
+            if (md5Cache != null) {
+                md5Cache.put(path, entry.size, entry.crc, lazyMd5);
+            }
+        }
+        return lazyMd5;
+    }
+
+    public long getCrc() {
+        return entry.crc;
+    }
+
+    @Override
+    public long getSize() {
+        return entry.size;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return lazyData == null ? index.open(entry) : new ByteArrayInputStream(lazyData);
+    }
+
+    public byte[] getData() throws IOException {
+        if (lazyData == null) {
+            lazyData = index.read(entry);
+        }
+        return lazyData;
+    }
+}
@@ -18,7 +18,6 @@ package net.oneandone.lavender.modules;
 import net.oneandone.lavender.config.Docroot;
 import net.oneandone.sushi.fs.FileNotFoundException;
 import net.oneandone.sushi.fs.Node;
-import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
 import net.oneandone.sushi.fs.filter.Filter;
 import net.oneandone.sushi.util.Separator;
@@ -37,8 +36,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class LavenderProperties {
     private static final Logger LOG = LoggerFactory.getLogger(LavenderProperties.class);
@@ -242,7 +239,7 @@ public class LavenderProperties {
         this.configs = new ArrayList<>();
     }
 
-    public void addModules(FileNode cache, boolean prod, String svnUsername, String svnPassword, List<Module> result, JarConfig jarConfig)
+    public void addModules(FileNode cache, boolean prod, String svnUsername, String svnPassword, List<Module<?>> result, JarConfig jarConfig)
             throws IOException {
         for (SvnProperties config : configs) {
             result.add(config.create(cache, prod, svnUsername, svnPassword, jarConfig));
@@ -350,46 +347,4 @@ public class LavenderProperties {
         }
         return fallbackSource != null ? fallbackSource : source;
     }
-
-    //--
-
-    /** To properly make jars available as a module, I have to load them into memory when the jar is itself packaged into a war. */
-    public static Node[] loadStreamNodes(Node jar, String ... names) throws IOException {
-        World world;
-        int count;
-        Node[] result;
-        ZipEntry entry;
-        String path;
-        Node dest;
-        int idx;
-
-        world = jar.getWorld();
-        count = 0;
-        result = new Node[names.length];
-        try (ZipInputStream src = new ZipInputStream(jar.createInputStream())) {
-            while ((entry = src.getNextEntry()) != null) {
-                path = entry.getName();
-                idx = indexOf(names, path);
-                if (idx != -1) {
-                    count++;
-                    dest = world.memoryNode();
-                    result[idx] = dest;
-                    world.getBuffer().copy(src, dest);
-                    if (count == names.length) {
-                        return result;
-                    }
-                }
-            }
-        }
-        return result;
-    }
-
-    private static int indexOf(String[] all, String element) {
-        for (int i = 0; i < all.length; i++) {
-            if (element.equals(all[i])) {
-                return i;
-            }
-        }
-        return -1;
-    }
 }
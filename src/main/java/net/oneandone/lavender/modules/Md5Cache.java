@@ -0,0 +1,204 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.sushi.fs.LineFormat;
+import net.oneandone.sushi.fs.LineReader;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent md5 sums, so devel filter restarts and repeated war publishing don't have to re-compute them.
+ * Maps paths to size, stamp and md5; an md5 is valid as long as size and stamp match. The stamp is the last modified
+ * time for files, and the crc32 for zip entries. Thread-safe.
+ */
+public class Md5Cache {
+    private static final Logger LOG = LoggerFactory.getLogger(Md5Cache.class);
+
+    private static final char SEP = ' ';
+
+    /** @return cache for the module files in root */
+    public static Md5Cache load(FileNode cacheDir, Node root) throws IOException {
+        String name;
+
+        name = Strings.removeLeftOpt(root.getPath().replace('/', '.'), ".") + ".md5";
+        // CAUTION: place all files directly in the configured cache directory - sub directories would cause permission problems
+        return load(cacheDir.join(name));
+    }
+
+    public static Md5Cache load(FileNode file) throws IOException {
+        Md5Cache result;
+        String line;
+
+        result = new Md5Cache(file);
+        if (file.exists()) {
+            result.stamp = file.getLastModified();
+            try (Reader reader = file.createReader();
+                 LineReader lines = new LineReader(reader, new LineFormat(LineFormat.LF_SEPARATOR, LineFormat.Trim.ALL))) {
+                while ((line = lines.next()) != null) {
+                    try {
+                        result.parse(line);
+                    } catch (RuntimeException e) {
+                        LOG.warn(file + ": ignoring cache, failed to parse line '" + line + "': " + e.getMessage());
+                        result.entries.clear();
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * For processes publishing many times, e.g. a daemon.
+     *
+     * @return previous with no paths touched if its file was not modified since previous loaded or saved it;
+     *         otherwise the cache loaded from the file
+     */
+    public static Md5Cache reload(Md5Cache previous) throws IOException {
+        synchronized (previous) {
+            if (previous.stamp == (previous.file.exists() ? previous.file.getLastModified() : 0)) {
+                previous.touched.clear();
+                return previous;
+            }
+        }
+        return load(previous.file);
+    }
+
+    //--
+
+    private final FileNode file;
+    private final Map<String, Entry> entries;
+    /** paths looked up or put since loading */
+    private final Set<String> touched;
+    private boolean modified;
+    /** last modified time of the file when loading or saving; 0 if it did not exist */
+    private long stamp;
+
+    public Md5Cache(FileNode file) {
+        this.file = file;
+        this.entries = new HashMap<>();
+        this.touched = new HashSet<>();
+        this.modified = false;
+        this.stamp = 0;
+    }
+
+    public FileNode getFile() {
+        return file;
+    }
+
+    /** @return null if unknown or outdated */
+    public synchronized byte[] lookup(String path, long size, long stamp) {
+        Entry entry;
+
+        touched.add(path);
+        entry = entries.get(path);
+        if (entry == null || entry.size != size || entry.stamp != stamp) {
+            return null;
+        }
+        return entry.md5;
+    }
+
+    public synchronized void put(String path, long size, long stamp, byte[] md5) {
+        touched.add(path);
+        entries.put(path, new Entry(size, stamp, md5));
+        modified = true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** removes entries for files that no longer exist */
+    public synchronized void retainAll(Collection<String> paths) {
+        if (entries.keySet().retainAll(paths)) {
+            modified = true;
+        }
+    }
+
+    /** removes entries not used since loading */
+    public synchronized void retainTouched() {
+        retainAll(touched);
+    }
+
+    public synchronized void save() throws IOException {
+        FileNode tmp;
+
+        if (!modified) {
+            return;
+        }
+        // first write to a temp file, then move it (which is atomic) because
+        // * no corruption by crashed/killed processes
+        // * works for multiple users as long as the cache directory has the proper permissions
+        tmp = file.getParent().createTempFile();
+        try (Writer dest = tmp.createWriter()) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                dest.write(SvnEntry.encode(entry.getKey()));
+                dest.write(SEP);
+                dest.write(Long.toString(entry.getValue().size));
+                dest.write(SEP);
+                dest.write(Long.toString(entry.getValue().stamp));
+                dest.write(SEP);
+                dest.write(Hex.encode(entry.getValue().md5));
+                dest.write('\n');
+            }
+        }
+        tmp.move(file, true);
+        modified = false;
+        stamp = file.getLastModified();
+    }
+
+    // path SEP size SEP stamp SEP md5
+    private void parse(String line) {
+        int first;
+        int second;
+        int third;
+
+        first = line.indexOf(SEP);
+        second = line.indexOf(SEP, first + 1);
+        third = line.indexOf(SEP, second + 1);
+        if (first == -1 || second == -1 || third == -1) {
+            throw new IllegalArgumentException("missing separator");
+        }
+        entries.put(SvnEntry.decode(line.substring(0, first)), new Entry(Long.parseLong(line.substring(first + 1, second)),
+                Long.parseLong(line.substring(second + 1, third)), Hex.decode(line.substring(third + 1).toCharArray())));
+    }
+
+    private static class Entry {
+        public final long size;
+        public final long stamp;
+        public final byte[] md5;
+
+        public Entry(long size, long stamp, byte[] md5) {
+            this.size = size;
+            this.stamp = stamp;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+/**
+ * Limits the heap used to buffer jars contained in a war. Jars that don't fit into the budget are spilled to
+ * temp files and memory-mapped. Thread-safe.
+ */
+public class MemoryBudget {
+    public static final long DEFAULT = 256L * 1024 * 1024;
+
+    private final long max;
+    private long used;
+
+    public MemoryBudget(long max) {
+        this.max = max;
+        this.used = 0;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /** @return false if the bytes don't fit; nothing is reserved in this case */
+    public synchronized boolean reserve(long bytes) {
+        if (bytes < 0 || used + bytes > max) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        if (bytes > used) {
+            throw new IllegalStateException(bytes + " vs " + used);
+        }
+        used -= bytes;
+    }
+}
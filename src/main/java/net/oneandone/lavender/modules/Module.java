@@ -22,7 +22,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -45,6 +48,7 @@ public abstract class Module<T> implements Iterable<Resource> {
     private final String targetPathPrefix;
 
     private final Filter filter;
+    private final CompiledFilter compiledFilter;
 
     private Map<String, T> files;
 
@@ -57,6 +61,7 @@ public abstract class Module<T> implements Iterable<Resource> {
         this.resourcePathPrefix = resourcePathPrefix;
         this.targetPathPrefix = targetPathPrefix;
         this.filter = filter;
+        this.compiledFilter = CompiledFilter.compile(filter);
         this.files = null;
     }
 
@@ -76,6 +81,11 @@ public abstract class Module<T> implements Iterable<Resource> {
         return files != null;
     }
 
+    /** @return null if not scanned yet */
+    protected Map<String, T> getFilesOpt() {
+        return files;
+    }
+
     private Map<String, T> files() throws IOException {
         long started;
 
@@ -134,7 +144,7 @@ public abstract class Module<T> implements Iterable<Resource> {
             return null;
         }
         path = resourcePath.substring(resourcePathPrefix.length());
-        if (!filter.matches(path)) {
+        if (!compiledFilter.matches(path)) {
             return null;
         }
         return path;
@@ -163,21 +173,27 @@ public abstract class Module<T> implements Iterable<Resource> {
 
     /** @return number of changed (updated or added) resources */
     public long publish(Distributor distributor) throws IOException {
-        Label label;
-        long count;
-
-        count = 0;
-        for (Resource resource : this) {
-            if (lavendelize) {
-                label = resource.labelLavendelized(targetPathPrefix, name);
-            } else {
-                label = resource.labelNormal(targetPathPrefix);
-            }
-            if (distributor.write(label, resource)) {
-                count++;
-            }
+        return Publisher.publish(Collections.<Module<?>>singletonList(this), Collections.singletonMap(type, distributor));
+    }
+
+    /** @return all resources, scans if necessary */
+    public List<Resource> resources() throws IOException {
+        List<Resource> result;
+
+        result = new ArrayList<>();
+        for (Map.Entry<String, T> entry : files().entrySet()) {
+            result.add(createResource(resourcePathPrefix + entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /** computes the md5 sum of the resource if not yet known */
+    public Label label(Resource resource) throws IOException {
+        if (lavendelize) {
+            return resource.labelLavendelized(targetPathPrefix, name);
+        } else {
+            return resource.labelNormal(targetPathPrefix);
         }
-        return count;
     }
 
     //--
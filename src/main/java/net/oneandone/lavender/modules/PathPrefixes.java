@@ -0,0 +1,98 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of directory prefixes (without heading slash, with tailing slash) compiled into a trie of path segments.
+ * Checking a path walks it once instead of comparing it with every prefix. Prefixes without tailing slash are
+ * plain string prefixes and checked separately. Immutable after construction.
+ */
+public class PathPrefixes {
+    private final Map<String, PathPrefixes> children;
+    private boolean terminal;
+    /** prefixes without tailing slash; only used in the root node */
+    private final List<String> raw;
+
+    public PathPrefixes(List<String> prefixes) {
+        this();
+        for (String prefix : prefixes) {
+            if (prefix.endsWith("/")) {
+                add(prefix);
+            } else {
+                raw.add(prefix);
+            }
+        }
+    }
+
+    private PathPrefixes() {
+        this.children = new HashMap<>();
+        this.terminal = false;
+        this.raw = new ArrayList<>();
+    }
+
+    private void add(String prefix) {
+        PathPrefixes current;
+        PathPrefixes child;
+        int prev;
+        int idx;
+        String segment;
+
+        current = this;
+        prev = 0;
+        while ((idx = prefix.indexOf('/', prev)) != -1) {
+            segment = prefix.substring(prev, idx);
+            child = current.children.get(segment);
+            if (child == null) {
+                child = new PathPrefixes();
+                current.children.put(segment, child);
+            }
+            current = child;
+            prev = idx + 1;
+        }
+        current.terminal = true;
+    }
+
+    /** @return true if path starts with one of the prefixes */
+    public boolean matches(String path) {
+        PathPrefixes current;
+        int prev;
+        int idx;
+
+        for (String prefix : raw) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        current = this;
+        prev = 0;
+        while ((idx = path.indexOf('/', prev)) != -1) {
+            current = current.children.get(path.substring(prev, idx));
+            if (current == null) {
+                return false;
+            }
+            if (current.terminal) {
+                return true;
+            }
+            prev = idx + 1;
+        }
+        return false;
+    }
+}
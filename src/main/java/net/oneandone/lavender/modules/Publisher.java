@@ -0,0 +1,153 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.index.Label;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes modules in stages: modules are scanned in parallel, resources are hashed in parallel, and the distributors
+ * decide and queue uploads in module and resource order. Every stage works ahead a bounded number of items only,
+ * and the resulting indexes are the same as for publishing one resource after the other.
+ */
+public class Publisher {
+    /** number of modules scanned ahead */
+    private static final int SCAN_AHEAD = 4;
+
+    private static final int HASH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** number of resources hashed ahead */
+    private static final int HASH_AHEAD = 256;
+
+    /**
+     * @param distributors maps module types to distributors; modules with other types are not published
+     * @return number of changed (updated or added) resources
+     */
+    public static long publish(List<Module<?>> modules, Map<String, Distributor> distributors) throws IOException {
+        List<Module<?>> selected;
+        List<Future<List<Resource>>> scans;
+        Deque<Pending> pending;
+        ExecutorService scanner;
+        ExecutorService hasher;
+        Module<?> module;
+        Distributor distributor;
+        long changed;
+
+        selected = new ArrayList<>();
+        for (Module<?> m : modules) {
+            if (distributors.containsKey(m.getType())) {
+                selected.add(m);
+            } else {
+                // nothing to do - this type is not published
+            }
+        }
+        if (selected.isEmpty()) {
+            return 0;
+        }
+        scanner = Executors.newFixedThreadPool(Math.min(selected.size(), SCAN_AHEAD));
+        hasher = Executors.newFixedThreadPool(HASH_THREADS);
+        try {
+            scans = new ArrayList<>();
+            pending = new ArrayDeque<>();
+            changed = 0;
+            for (int i = 0; i < selected.size(); i++) {
+                while (scans.size() < Math.min(selected.size(), i + SCAN_AHEAD)) {
+                    scans.add(scanner.submit(scan(selected.get(scans.size()))));
+                }
+                module = selected.get(i);
+                distributor = distributors.get(module.getType());
+                for (Resource resource : get(scans.get(i), module.getName())) {
+                    if (pending.size() == HASH_AHEAD) {
+                        changed += pending.removeFirst().write();
+                    }
+                    pending.addLast(new Pending(distributor, resource, hasher.submit(label(module, resource))));
+                }
+                scans.set(i, null);
+            }
+            while (!pending.isEmpty()) {
+                changed += pending.removeFirst().write();
+            }
+            return changed;
+        } finally {
+            scanner.shutdownNow();
+            hasher.shutdownNow();
+        }
+    }
+
+    private static Callable<List<Resource>> scan(final Module<?> module) {
+        return new Callable<List<Resource>>() {
+            @Override
+            public List<Resource> call() throws IOException {
+                return module.resources();
+            }
+        };
+    }
+
+    private static Callable<Label> label(final Module<?> module, final Resource resource) {
+        return new Callable<Label>() {
+            @Override
+            public Label call() throws IOException {
+                return module.label(resource);
+            }
+        };
+    }
+
+    private static <T> T get(Future<T> future, String what) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("publishing interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(what + ": publishing failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /** a resource being hashed */
+    private static class Pending {
+        private final Distributor distributor;
+        private final Resource resource;
+        private final Future<Label> label;
+
+        public Pending(Distributor distributor, Resource resource, Future<Label> label) {
+            this.distributor = distributor;
+            this.resource = resource;
+            this.label = label;
+        }
+
+        /** @return 1 if changed, 0 otherwise */
+        public int write() throws IOException {
+            return distributor.write(get(label, resource.getOrigin()), resource) ? 1 : 0;
+        }
+    }
+}
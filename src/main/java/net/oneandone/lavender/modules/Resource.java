@@ -18,7 +18,13 @@ package net.oneandone.lavender.modules;
 import net.oneandone.lavender.index.Hex;
 import net.oneandone.lavender.index.Label;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -33,6 +39,33 @@ public abstract class Resource {
 
     public abstract byte[] getData() throws IOException;
 
+    //-- streaming access; override to avoid loading the data into memory
+
+    public long getSize() throws IOException {
+        return getData().length;
+    }
+
+    public InputStream open() throws IOException {
+        return new ByteArrayInputStream(getData());
+    }
+
+    public ReadableByteChannel openChannel() throws IOException {
+        return Channels.newChannel(open());
+    }
+
+    /** does not close dest */
+    public void writeTo(OutputStream dest) throws IOException {
+        byte[] buffer;
+        int len;
+
+        buffer = new byte[BUFFER_SIZE];
+        try (InputStream src = open()) {
+            while ((len = src.read(buffer)) != -1) {
+                dest.write(buffer, 0, len);
+            }
+        }
+    }
+
     public abstract boolean isOutdated();
     
     public Label labelNormal(String targetPathPrefix) throws IOException {
@@ -63,19 +96,57 @@ public abstract class Resource {
 
     //--
 
-    private static final MessageDigest DIGEST;
-
-    static {
-        try {
-            DIGEST = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e.getMessage());
+    /** digests are not thread-safe, so every thread gets its own */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e.getMessage());
+            }
         }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public static byte[] md5(byte ... data) {
+        MessageDigest digest;
+
+        digest = DIGEST.get();
+        digest.reset();
+        digest.update(data, 0, data.length);
+        return digest.digest();
     }
 
-    public static synchronized byte[] md5(byte ... data) {
-        DIGEST.update(data, 0, data.length);
-        return DIGEST.digest();
+    /** hashes the stream incrementally; does not close it */
+    public static byte[] md5(InputStream src) throws IOException {
+        MessageDigest digest;
+        byte[] buffer;
+        int len;
+
+        digest = DIGEST.get();
+        digest.reset();
+        buffer = new byte[BUFFER_SIZE];
+        while ((len = src.read(buffer)) != -1) {
+            digest.update(buffer, 0, len);
+        }
+        return digest.digest();
     }
 
+    /** hashes the channel incrementally; does not close it */
+    public static byte[] md5(ReadableByteChannel src) throws IOException {
+        MessageDigest digest;
+        ByteBuffer buffer;
+
+        digest = DIGEST.get();
+        digest.reset();
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (src.read(buffer) != -1) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return digest.digest();
+    }
 }
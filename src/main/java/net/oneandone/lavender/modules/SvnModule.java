@@ -116,21 +116,24 @@ public class SvnModule extends Module<SvnEntry> {
         long modifiedModule;
 
         repository = root.getRoot().getRepository();
-        modifiedRepository = pinnedRevision == -1 ? repository.getLatestRevision() : pinnedRevision;
-        if (modifiedRepository == lastModifiedRepository) {
-            LOG.info("no changes in repository: " + modifiedRepository);
-            return entries;
-        }
-        lastModifiedRepository = modifiedRepository;
-        modifiedModule = getLastModified();
-        if (modifiedModule == lastModifiedModule) {
-            LOG.info(root.getURI() + ": re-using scan for revision " + modifiedModule);
+        // svnkit is not thread-safe; modules are scanned in parallel when publishing
+        synchronized (repository) {
+            modifiedRepository = pinnedRevision == -1 ? repository.getLatestRevision() : pinnedRevision;
+            if (modifiedRepository == lastModifiedRepository) {
+                LOG.info("no changes in repository: " + modifiedRepository);
+                return entries;
+            }
+            lastModifiedRepository = modifiedRepository;
+            modifiedModule = getLastModified();
+            if (modifiedModule == lastModifiedModule) {
+                LOG.info(root.getURI() + ": re-using scan for revision " + modifiedModule);
+                return entries;
+            }
+            LOG.info(root.getURI() + ": scan " + lastModifiedModule + " is out-dated, rescanning revision " + modifiedModule);
+            entries = doScan(filter);
+            lastModifiedModule = modifiedModule;
             return entries;
         }
-        LOG.info(root.getURI() + ": scan " + lastModifiedModule + " is out-dated, rescanning revision " + modifiedModule);
-        entries = doScan(filter);
-        lastModifiedModule = modifiedModule;
-        return entries;
     }
 
     private long getLastModified() throws SVNException {
@@ -153,9 +156,11 @@ public class SvnModule extends Module<SvnEntry> {
         return result.get(0).getRevision();
     }
 
-    protected Map<String, SvnEntry> doScan(final Filter filter) throws SVNException {
+    protected Map<String, SvnEntry> doScan(Filter filter) throws SVNException {
+        final CompiledFilter compiled;
         final Map<String, SvnEntry> newEntries;
 
+        compiled = CompiledFilter.compile(filter);
         newEntries = new HashMap<>();
         root.getRoot().getClientMananger().getLogClient().doList(
                 root.getSvnurl(), null, SVNRevision.create(lastModifiedRepository), false, SVNDepth.INFINITY,
@@ -169,7 +174,7 @@ public class SvnModule extends Module<SvnEntry> {
 
                 if (entry.getKind() == SVNNodeKind.FILE) {
                     accessPath = entry.getRelativePath();
-                    if (filter.matches(accessPath)) {
+                    if (compiled.matches(accessPath)) {
                         if (jarConfig != null) {
                             publicPath = jarConfig.getPath(accessPath);
                         } else {
@@ -69,6 +69,7 @@ public class SvnProperties {
         final SvnNode root;
         String idxName;
         final FileNode checkout;
+        DefaultModule checkoutModule;
         String url;
         long pinnedRevision;
 
@@ -86,12 +87,14 @@ public class SvnProperties {
                 // I could also check if the svnurl noted in the artifact matches the svn url of checkout,
                 // but that fails for frontend teams creating a branch without adjusting scm elements in the pom.
 
-                return new DefaultModule(type, name, lavendelize, resourcePathPrefix, targetPathPrefix, filter) {
+                checkoutModule = new DefaultModule(type, name, lavendelize, resourcePathPrefix, targetPathPrefix, filter) {
                     @Override
-                    protected Map<String, Node> scan(final Filter filter) throws Exception {
+                    protected Map<String, Node> scan(Filter filter) throws Exception {
                         Filter f;
+                        final CompiledFilter compiled;
                         final Map<String, Node> result;
 
+                        compiled = CompiledFilter.compile(filter);
                         result = new HashMap<>();
                         f = checkout.getWorld().filter().predicate(Predicate.FILE).includeAll();
                         f.invoke(checkout, new Action() {
@@ -109,7 +112,7 @@ public class SvnProperties {
                                 String path;
 
                                 path = node.getRelative(checkout);
-                                if (filter.matches(path)) {
+                                if (compiled.matches(path)) {
                                     if (jarConfig != null) {
                                         path = jarConfig.getPath(path);
                                     }
@@ -123,6 +126,10 @@ public class SvnProperties {
 
                     }
                 };
+                if (!prod) {
+                    checkoutModule.setMd5Cache(Md5Cache.load(cacheDir, checkout));
+                }
+                return checkoutModule;
             }
         }
         if (prod) {
@@ -49,6 +49,12 @@ public class SvnResource extends Resource {
         return entry.md5;
     }
 
+    /** svn content is buffered: it's loaded once and written to all targets */
+    @Override
+    public long getSize() {
+        return entry.size;
+    }
+
     public String getPath() {
         return resourcePath;
     }
@@ -70,7 +76,7 @@ public class SvnResource extends Resource {
         return module.uri() + "/" + resourcePath;
     }
 
-    public byte[] getData() throws IOException {
+    public synchronized byte[] getData() throws IOException {
         SVNRepository repository;
         long loaded;
 
@@ -78,10 +84,13 @@ public class SvnResource extends Resource {
             lazyData = new byte[entry.size];
             try (OutputStream dest = new FillOutputStream(lazyData)) {
                 repository = module.getRoot().getRoot().getRepository();
-                try {
-                    loaded = repository.getFile(module.getRoot().join(entry.accessPath).getPath(), accessRevision, null, dest);
-                } catch (SVNException e) {
-                    throw new IOException("svn failure: " + e.getMessage(), e);
+                // svnkit repositories are not thread-safe; resources are hashed in parallel when publishing
+                synchronized (repository) {
+                    try {
+                        loaded = repository.getFile(module.getRoot().join(entry.accessPath).getPath(), accessRevision, null, dest);
+                    } catch (SVNException e) {
+                        throw new IOException("svn failure: " + e.getMessage(), e);
+                    }
                 }
                 if (loaded != accessRevision) {
                     throw new IllegalStateException(loaded + " " + accessRevision);
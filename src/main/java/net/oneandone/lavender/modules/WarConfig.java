@@ -54,23 +54,16 @@ public class WarConfig {
 
     //--
 
-    private final List<String> statics;
+    private final PathPrefixes statics;
 
     public WarConfig(List<String> statics) {
-        this.statics = statics;
+        this.statics = new PathPrefixes(statics);
     }
 
     public boolean isPublicResource(String resourceName) {
         if (resourceName.startsWith("WEB-INF")) {
             return false;
         }
-
-        for (String path : statics) {
-            if (resourceName.startsWith(path)) {
-                return true;
-            }
-        }
-
-        return false;
+        return statics.matches(resourceName);
     }
 }
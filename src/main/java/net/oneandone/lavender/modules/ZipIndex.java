@@ -0,0 +1,377 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.io.Buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Entries of a zip file, read from its central directory only. Entry data is located by the offset
+ * stored in the central directory and inflated lazily. Jar files are memory-mapped; jars contained in a war are
+ * read once, into memory or into a memory-mapped temp file. Thread-safe.
+ */
+public class ZipIndex {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int LOCAL_SIZE = 30;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    public static ZipIndex open(FileNode jar) throws IOException {
+        return new ZipIndex(jar.getURI().toString(), map(jar), 0);
+    }
+
+    private static ByteBuffer map(FileNode file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + ": file too big: " + channel.size());
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * For jars without random access, e.g. jars in a war. The jar is read into memory if it fits into the budget,
+     * otherwise it's spilled to a temp file that's memory-mapped. Callers have to release getHeap() when
+     * they no longer need the index. Thread-safe.
+     */
+    public static ZipIndex load(Node jar, MemoryBudget budget) throws IOException {
+        Buffer buffer;
+        long length;
+        byte[] bytes;
+        FileNode tmp;
+        ByteBuffer mapped;
+
+        buffer = new Buffer(jar.getWorld().getBuffer());
+        length = jar.length();
+        if (budget.reserve(length)) {
+            try (InputStream src = jar.createInputStream()) {
+                bytes = buffer.readBytes(src);
+            } catch (IOException | RuntimeException e) {
+                budget.release(length);
+                throw e;
+            }
+            if (bytes.length != length) {
+                budget.release(length);
+                throw new IOException(jar + ": length mismatch: " + bytes.length + " vs " + length);
+            }
+            return new ZipIndex(jar.getURI().toString(), ByteBuffer.wrap(bytes), length);
+        } else {
+            tmp = jar.getWorld().getTemp().createTempFile();
+            try {
+                try (InputStream src = jar.createInputStream(); OutputStream dest = tmp.createOutputStream()) {
+                    buffer.copy(src, dest);
+                }
+                mapped = map(tmp);
+            } finally {
+                // the mapping stays valid after deleting the file
+                if (!tmp.toPath().toFile().delete()) {
+                    tmp.toPath().toFile().deleteOnExit();
+                }
+            }
+            return new ZipIndex(jar.getURI().toString(), mapped, 0);
+        }
+    }
+
+    //--
+
+    private final String origin;
+    private final ByteBuffer buffer;
+    /** bytes reserved from the memory budget */
+    private final long heap;
+    /** in central directory order */
+    private final List<Entry> entries;
+    private final Map<String, Entry> names;
+
+    public ZipIndex(String origin, ByteBuffer buffer, long heap) throws IOException {
+        this.origin = origin;
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.heap = heap;
+        this.entries = new ArrayList<>();
+        this.names = new HashMap<>();
+        readCentralDirectory();
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public long getHeap() {
+        return heap;
+    }
+
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /** @return null if not found */
+    public Entry lookup(String name) {
+        return names.get(name);
+    }
+
+    /** @return null if not found */
+    public byte[] readOpt(String name) throws IOException {
+        Entry entry;
+
+        entry = lookup(name);
+        return entry == null || entry.isDirectory() ? null : read(entry);
+    }
+
+    /** streams the entry without inflating it into memory */
+    public InputStream open(Entry entry) throws IOException {
+        ByteBuffer src;
+        final Inflater inflater;
+
+        src = data(entry);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return new BufferInputStream(src, false);
+            case ZipEntry.DEFLATED:
+                inflater = new Inflater(true);
+                return new InflaterInputStream(new BufferInputStream(src, true), inflater, 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                throw new IOException(origin + ": unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    public byte[] read(Entry entry) throws IOException {
+        ByteBuffer src;
+        byte[] compressed;
+        byte[] result;
+        Inflater inflater;
+        int count;
+
+        src = data(entry);
+        result = new byte[entry.size];
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                src.get(result);
+                break;
+            case ZipEntry.DEFLATED:
+                // one extra dummy byte for the inflater in nowrap mode
+                compressed = new byte[entry.compressedSize + 1];
+                src.get(compressed, 0, entry.compressedSize);
+                inflater = new Inflater(true);
+                try {
+                    inflater.setInput(compressed);
+                    count = 0;
+                    while (count < result.length) {
+                        count += inflater.inflate(result, count, result.length - count);
+                        if (inflater.finished() || inflater.needsInput()) {
+                            break;
+                        }
+                    }
+                    if (count != result.length) {
+                        throw new IOException(origin + ": size mismatch for " + entry.name + ": " + count + " vs " + result.length);
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(origin + ": cannot inflate " + entry.name + ": " + e.getMessage(), e);
+                } finally {
+                    inflater.end();
+                }
+                break;
+            default:
+                throw new IOException(origin + ": unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        return result;
+    }
+
+    /** @return buffer with the compressed data of the entry between position and limit */
+    private ByteBuffer data(Entry entry) throws IOException {
+        ByteBuffer src;
+        int start;
+
+        src = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (src.getInt(entry.offset) != LOCAL_SIG) {
+            throw new IOException(origin + ": invalid local header for " + entry.name);
+        }
+        start = entry.offset + LOCAL_SIZE + (src.getShort(entry.offset + 26) & 0xffff) + (src.getShort(entry.offset + 28) & 0xffff);
+        src.position(start);
+        src.limit(start + (entry.method == ZipEntry.STORED ? entry.size : entry.compressedSize));
+        return src;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        int end;
+        int pos;
+        int max;
+        Entry entry;
+        int nameLength;
+        byte[] name;
+        long compressedSize;
+        long size;
+        long offset;
+
+        end = findEnd();
+        pos = buffer.getInt(end + 16);
+        max = pos + buffer.getInt(end + 12);
+        if (pos < 0 || max > end) {
+            throw new IOException(origin + ": invalid central directory");
+        }
+        while (pos < max) {
+            if (buffer.getInt(pos) != CENTRAL_SIG) {
+                throw new IOException(origin + ": invalid central directory header at " + pos);
+            }
+            compressedSize = buffer.getInt(pos + 20) & ZIP64_MAGIC;
+            size = buffer.getInt(pos + 24) & ZIP64_MAGIC;
+            offset = buffer.getInt(pos + 42) & ZIP64_MAGIC;
+            if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || offset == ZIP64_MAGIC || size > Integer.MAX_VALUE) {
+                throw new IOException(origin + ": zip64 not supported");
+            }
+            nameLength = buffer.getShort(pos + 28) & 0xffff;
+            name = new byte[nameLength];
+            for (int i = 0; i < nameLength; i++) {
+                name[i] = buffer.get(pos + CENTRAL_SIZE + i);
+            }
+            entry = new Entry(new String(name, UTF_8), buffer.getShort(pos + 10) & 0xffff,
+                    buffer.getShort(pos + 14) & 0xffff, buffer.getShort(pos + 12) & 0xffff,
+                    buffer.getInt(pos + 16) & ZIP64_MAGIC, (int) compressedSize, (int) size, (int) offset);
+            entries.add(entry);
+            names.put(entry.name, entry);
+            pos += CENTRAL_SIZE + nameLength + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+        }
+    }
+
+    private int findEnd() throws IOException {
+        int min;
+
+        // the end record is followed by a comment of up to 64k
+        min = Math.max(0, buffer.limit() - END_SIZE - 0xffff);
+        for (int pos = buffer.limit() - END_SIZE; pos >= min; pos--) {
+            if (buffer.getInt(pos) == END_SIG) {
+                return pos;
+            }
+        }
+        throw new IOException(origin + ": not a zip file");
+    }
+
+    //--
+
+    /** Reads a buffer between position and limit, optionally followed by the dummy byte needed by inflaters in nowrap mode. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer src;
+        private boolean dummy;
+
+        public BufferInputStream(ByteBuffer src, boolean dummy) {
+            this.src = src;
+            this.dummy = dummy;
+        }
+
+        @Override
+        public int read() {
+            byte[] one;
+
+            one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dest, int ofs, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!src.hasRemaining()) {
+                if (dummy) {
+                    dummy = false;
+                    dest[ofs] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            len = Math.min(len, src.remaining());
+            src.get(dest, ofs, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return src.remaining();
+        }
+    }
+
+    /** Immutable. */
+    public static class Entry {
+        public final String name;
+        public final int method;
+        private final int date;
+        private final int time;
+        public final long crc;
+        public final int compressedSize;
+        /** uncompressed */
+        public final int size;
+        /** of the local header */
+        private final int offset;
+
+        public Entry(String name, int method, int date, int time, long crc, int compressedSize, int size, int offset) {
+            this.name = name;
+            this.method = method;
+            this.date = date;
+            this.time = time;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /** converts the dos date and time like java.util.zip does */
+        public long getLastModified() {
+            Calendar calendar;
+
+            calendar = new GregorianCalendar(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1, date & 0x1f,
+                    (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e);
+            return calendar.getTimeInMillis();
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.cli;
+
+import net.oneandone.lavender.config.Alias;
+import net.oneandone.lavender.config.Cluster;
+import net.oneandone.lavender.config.Connection;
+import net.oneandone.lavender.config.Host;
+import net.oneandone.lavender.config.Net;
+import net.oneandone.lavender.config.Pool;
+import net.oneandone.lavender.config.Properties;
+import net.oneandone.lavender.index.Generation;
+import net.oneandone.lavender.index.IndexCache;
+import net.oneandone.sushi.cli.Console;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DaemonTest {
+    private World world;
+    private FileNode dir;
+    private FileNode tokenFile;
+    private Host host;
+    private Daemon daemon;
+
+    @Before
+    public void before() throws Exception {
+        Cluster cluster;
+        Net net;
+        Properties properties;
+
+        world = new World();
+        dir = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(dir.join("host"));
+        cluster.addDocroot("web", "htdocs", "indexes", new Alias("fix", "no.such.domain"));
+        host = cluster.hosts().get(0);
+        net = new Net();
+        net.add(cluster);
+        properties = new Properties(world, dir.join("cache").mkdir(), new URI("svn:x"), null, null, new ArrayList<Node>(),
+                1000, 0, false, 2, false, 60);
+        tokenFile = dir.join("token");
+        daemon = new Daemon(Console.create(world), properties, net, 0, tokenFile);
+        daemon.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        daemon.stop();
+        assertFalse(tokenFile.exists());
+    }
+
+    /** jobs share connections and cached indexes */
+    @Test
+    public void file() throws IOException {
+        FileNode archive;
+        FileNode indexes;
+        String job;
+        Connection connection;
+        int size;
+
+        archive = dir.join("archive").mkdir();
+        archive.join("img").mkdir().join("test.png").writeString("png");
+        indexes = dir.join("host/indexes");
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+        job = "file\n" + archive.getAbsolute() + "\napp.idx\nweb\ntest\n";
+        assertExit(0, post("/", "localhost:" + daemon.getPort(), token(), null, job));
+        assertTrue(Generation.load(indexes).names().contains("app.idx"));
+        assertEquals(1, Fsck.find(dir.join("host/htdocs"), "-type", "f").size());
+        connection = connection();
+        assertNotNull(connection);
+
+        // loads app.idx through the cache
+        assertExit(0, post("/", "localhost:" + daemon.getPort(), token(), null, job));
+        assertSame(connection, connection());
+        size = cache().size();
+        assertTrue(size > 0);
+        Generation.load(indexes, cache()).load("app.idx");
+        // not loaded again
+        assertEquals(size, cache().size());
+    }
+
+    @Test
+    public void rejected() throws IOException {
+        String host;
+
+        host = "localhost:" + daemon.getPort();
+        assertStatus(401, post("/reload", host, null, null, ""));
+        assertStatus(401, post("/reload", host, "wrong", null, ""));
+        assertStatus(403, post("/reload", host, token(), "http://evil.example", ""));
+        assertStatus(403, post("/reload", "evil.example:" + daemon.getPort(), token(), null, ""));
+        assertStatus(400, post("/", "[::1]:" + daemon.getPort(), token(), null, "fsck\ntest\n"));
+        assertStatus(400, post("/", host, token(), null, "file\n-user\nother@all\narchive\napp.idx\nweb\ntest\n"));
+        assertStatus(200, post("/reload", "127.0.0.1", token(), null, ""));
+    }
+
+    private Connection connection() throws IOException {
+        try (Pool pool = daemon.jobPool()) {
+            return pool.lookup(host);
+        }
+    }
+
+    private IndexCache cache() throws IOException {
+        try (Pool pool = daemon.jobPool()) {
+            return pool.getIndexCache();
+        }
+    }
+
+    private String token() throws IOException {
+        return tokenFile.readString().trim();
+    }
+
+    private static void assertExit(int expected, String response) {
+        assertStatus(200, response);
+        assertTrue(response, response.endsWith("exit " + expected + "\n"));
+    }
+
+    private static void assertStatus(int expected, String response) {
+        assertTrue(response, response.startsWith("HTTP/1.1 " + expected + " "));
+    }
+
+    /** sends the request with a plain socket, because HttpURLConnection does not send Origin or Host headers as is */
+    private String post(String path, String host, String token, String origin, String body) throws IOException {
+        StringBuilder request;
+        byte[] bytes;
+        OutputStream dest;
+        InputStream src;
+        ByteArrayOutputStream response;
+        byte[] buffer;
+        int count;
+
+        bytes = body.getBytes(StandardCharsets.UTF_8);
+        request = new StringBuilder();
+        request.append("POST ").append(path).append(" HTTP/1.0\r\n");
+        request.append("Host: ").append(host).append("\r\n");
+        if (token != null) {
+            request.append("Authorization: Bearer ").append(token).append("\r\n");
+        }
+        if (origin != null) {
+            request.append("Origin: ").append(origin).append("\r\n");
+        }
+        request.append("Content-Length: ").append(bytes.length).append("\r\n\r\n");
+        response = new ByteArrayOutputStream();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+            dest = socket.getOutputStream();
+            src = socket.getInputStream();
+            dest.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            dest.write(bytes);
+            dest.flush();
+            buffer = new byte[4096];
+            while ((count = src.read(buffer)) != -1) {
+                response.write(buffer, 0, count);
+            }
+        }
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.cli;
+
+import net.oneandone.lavender.config.Alias;
+import net.oneandone.lavender.config.Cluster;
+import net.oneandone.lavender.config.Host;
+import net.oneandone.lavender.config.Net;
+import net.oneandone.lavender.config.Properties;
+import net.oneandone.lavender.index.Generation;
+import net.oneandone.sushi.cli.Console;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Runs fsck on a cluster with two local hosts */
+public class FsckTest {
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private World world;
+    private FileNode dir;
+    private Net net;
+    private Properties properties;
+    private FileNode archive;
+
+    @Before
+    public void before() throws Exception {
+        Cluster cluster;
+
+        world = new World();
+        dir = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(dir.join("host0"));
+        cluster.addLocalhost(dir.join("host1"));
+        cluster.addDocroot("web", "htdocs", "indexes", new Alias("fix", "no.such.domain"));
+        net = new Net();
+        net.add(cluster);
+        properties = new Properties(world, dir.join("cache").mkdir(), new URI("svn:x"), null, null, new ArrayList<Node>(),
+                1000, 0, false, 1, false, 60);
+        archive = dir.join("archive").mkdir();
+        archive.join("img").mkdir().join("a.png").writeString("a");
+        archive.join("img/b.png").writeString("b");
+    }
+
+    @After
+    public void after() throws IOException {
+        dir.deleteTree();
+    }
+
+    @Test
+    public void ok() throws IOException {
+        String output;
+
+        publish();
+        output = fsck(0);
+        assertEquals(output, 2, sections(output).size());
+        for (String section : sections(output)) {
+            assertTrue(output, section.contains("files: 2\n  references: 2\n  dangling references: 0\n  unreferenced files: 0"));
+        }
+        assertTrue(output, output.endsWith("ok\n"));
+    }
+
+    @Test
+    public void problems() throws IOException {
+        FileNode htdocs;
+        List<String> sections;
+
+        publish();
+        htdocs = host(1).join("htdocs");
+        htdocs.join(Fsck.find(htdocs, "-type", "f").get(0)).deleteFile();
+        htdocs.join("junk.png").writeString("junk").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        sections = sections(fsck(-1));
+        assertTrue(sections.get(0), sections.get(0).contains("dangling references: 0"));
+        assertTrue(sections.get(1), sections.get(1).contains("dangling references: 1"));
+        assertTrue(sections.get(1), sections.get(1).contains("unreferenced files: 1"));
+    }
+
+    /** files of removed references are deleted by a later publish */
+    @Test
+    public void tombstones() throws IOException {
+        String output;
+
+        publish();
+        archive.join("img/b.png").deleteFile();
+        publish();
+        age(host(0).join("htdocs"));
+        output = fsck(0);
+        assertTrue(output, output.contains("tombstones: 1\n  unreferenced files: 0"));
+        assertFalse(output, output.contains("recent"));
+    }
+
+    @Test
+    public void mismatch() throws IOException {
+        Cluster single;
+        String output;
+
+        publish();
+        single = new Cluster("single");
+        single.hosts().add(Host.localhost(host(1)));
+        single.addDocroot("web", "htdocs", "indexes", new Alias("fix", "no.such.domain"));
+        net.add(single);
+        archive.join("img/c.png").writeString("c");
+        run(0, "file", archive.getAbsolute(), "app.idx", "web", "single");
+        output = fsck(-1);
+        assertTrue(output, output.contains("index files differ: app.idx"));
+    }
+
+    /** docroots checked ok are skipped until their indexes change */
+    @Test
+    public void resume() throws IOException {
+        FileNode htdocs;
+        Node missing;
+        List<String> sections;
+
+        publish();
+        htdocs = host(1).join("htdocs");
+        missing = htdocs.join(Fsck.find(htdocs, "-type", "f").get(0));
+        missing.move(dir.join("missing"));
+        fsck(-1);
+        sections = sections(fsck(-1, "-resume"));
+        assertTrue(sections.get(0), sections.get(0).contains("unchanged since checkpoint"));
+        assertTrue(sections.get(1), sections.get(1).contains("dangling references: 1"));
+
+        archive.join("img/c.png").writeString("c");
+        publish();
+        sections = sections(fsck(-1, "-resume"));
+        assertTrue(sections.get(0), sections.get(0).contains("files: 3"));
+
+        dir.join("missing").move(missing);
+        sections = sections(fsck(0, "-resume"));
+        assertTrue(sections.get(0), sections.get(0).contains("unchanged since checkpoint"));
+        assertTrue(sections.get(1), sections.get(1).contains("dangling references: 0"));
+        // removed when all docroots are ok
+        assertEquals(0, properties.unlockedCache().find("fsck-*.checkpoint").size());
+    }
+
+    @Test
+    public void gc() throws IOException {
+        FileNode htdocs;
+        FileNode indexes;
+        FileNode other;
+        List<String> previous;
+        Set<String> referenced;
+        String output;
+
+        htdocs = host(0).join("htdocs");
+        indexes = host(0).join("indexes");
+        publish();
+        other = dir.join("other").mkdir();
+        other.join("c.png").writeString("c");
+        run(0, "file", other.getAbsolute(), "other.idx", "web", "test");
+        previous = Fsck.find(indexes.join(Generation.DATA), "-type", "f");
+        // removes other.idx, its data file is referenced by the previous generation only
+        other.join("c.png").deleteFile();
+        run(0, "file", other.getAbsolute(), "other.idx", "web", "test");
+        assertFalse(Generation.load(indexes).names().contains("other.idx"));
+        htdocs.join("junk/dir").mkdirs().join("old.png").writeString("old");
+        htdocs.join("recent.png").writeString("recent");
+        indexes.join(Generation.DATA, "unreferenced.idx").writeString("");
+        age(htdocs.join("junk"));
+        age(indexes.join(Generation.DATA));
+        output = sections(fsck(0, "-gc")).get(0);
+        // recent.png and the file of other.idx
+        assertTrue(output, output.contains("2 unreferenced files modified in the last 60 minutes are kept."));
+        assertTrue(output, output.contains("1 unreferenced files deleted."));
+        assertTrue(output, output.contains("1 unreferenced index files deleted."));
+        assertFalse(htdocs.join("junk").exists());
+        assertTrue(htdocs.join("recent.png").exists());
+        assertFalse(indexes.join(Generation.DATA, "unreferenced.idx").exists());
+        referenced = Generation.load(indexes).referenced();
+        assertTrue(indexes.join(Generation.PREVIOUS).exists());
+        for (String file : referenced) {
+            assertTrue(file, indexes.join(file).exists());
+        }
+        assertEquals(referenced.size(), indexes.join(Generation.DATA).list().size());
+        // still referenced by the previous generation
+        for (String file : previous) {
+            assertTrue(file, indexes.join(Generation.DATA, file).exists());
+        }
+        assertEquals(4, Fsck.find(htdocs, "-type", "f").size());
+    }
+
+    /** unreferenced files and empty directories modified within the grace period might belong to a publish in progress */
+    @Test
+    public void recent() throws IOException {
+        FileNode htdocs;
+        String output;
+
+        publish();
+        htdocs = host(0).join("htdocs");
+        htdocs.join("upload.png").writeString("in progress");
+        htdocs.join("empty").mkdir();
+        output = fsck(0);
+        assertTrue(output, output.contains("recent unreferenced files: 1"));
+        assertTrue(output, output.contains("unreferenced files: 0"));
+        htdocs.join("old").mkdir().setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        fsck(0, "-gc");
+        assertTrue(htdocs.join("upload.png").exists());
+        assertTrue(htdocs.join("empty").exists());
+        assertFalse(htdocs.join("old").exists());
+
+        htdocs.join("upload.png").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        output = fsck(-1);
+        assertTrue(output, output.contains("unreferenced files: 1"));
+    }
+
+    //--
+
+    private FileNode host(int n) {
+        return dir.join("host" + n);
+    }
+
+    /** makes files older than the grace period */
+    private static void age(Node dir) throws IOException {
+        for (Node file : dir.find("**/*")) {
+            file.setLastModified(System.currentTimeMillis() - 2 * HOUR);
+        }
+    }
+
+    /** @return output of every host, in host order */
+    private static List<String> sections(String output) {
+        List<String> result;
+        String[] parts;
+
+        result = new ArrayList<>();
+        parts = output.split("(?m)^\\[[^]]*\\] fix\n");
+        for (int i = 1; i < parts.length; i++) {
+            result.add(parts[i]);
+        }
+        return result;
+    }
+
+    private void publish() throws IOException {
+        run(0, "file", archive.getAbsolute(), "app.idx", "web", "test");
+    }
+
+    /** @return output */
+    private String fsck(int expected, String ... options) throws IOException {
+        String[] args;
+
+        args = new String[options.length + 2];
+        args[0] = "fsck";
+        System.arraycopy(options, 0, args, 1, options.length);
+        args[args.length - 1] = "test";
+        return run(expected, args);
+    }
+
+    private String run(int expected, String ... args) throws IOException {
+        StringWriter buffer;
+        PrintWriter writer;
+        Console console;
+        int code;
+
+        buffer = new StringWriter();
+        writer = new PrintWriter(buffer, true);
+        console = new Console(world, writer, writer, new ByteArrayInputStream(new byte[0]));
+        code = new Main(console, properties, net, null).run(args);
+        writer.flush();
+        if (code != expected) {
+            throw new IOException("exit code " + code + ", expected " + expected + ":\n" + buffer);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelTest {
+    private static final Parallel.Task<Integer, String> SLEEP = new Parallel.Task<Integer, String>() {
+        @Override
+        public String invoke(Integer millis) throws Exception {
+            if (millis < 0) {
+                throw new IOException("failed " + millis);
+            }
+            Thread.sleep(millis);
+            return "slept " + millis;
+        }
+    };
+
+    @Test
+    public void ordered() throws IOException {
+        long started;
+
+        started = System.currentTimeMillis();
+        assertEquals(Arrays.asList("slept 300", "slept 10", "slept 200"), Parallel.run("sleep", Arrays.asList(300, 10, 200), 0, SLEEP));
+        assertTrue(System.currentTimeMillis() - started < 500);
+        assertEquals(0, Parallel.run("sleep", Arrays.<Integer>asList(), 0, SLEEP).size());
+    }
+
+    @Test
+    public void failures() {
+        List<Integer> items;
+
+        items = Arrays.asList(10, -1, -2);
+        try {
+            Parallel.run("sleep", items, 0, SLEEP);
+            fail();
+        } catch (IOException e) {
+            assertEquals("sleep failed for 2 of 3 hosts", e.getMessage());
+            assertEquals("failed -1", e.getSuppressed()[0].getMessage());
+            assertEquals("failed -2", e.getSuppressed()[1].getMessage());
+        }
+        try {
+            Parallel.run("sleep", Arrays.asList(-1), 0, SLEEP);
+            fail();
+        } catch (IOException e) {
+            assertEquals("failed -1", e.getMessage());
+        }
+    }
+
+    @Test
+    public void timeout() {
+        try {
+            Parallel.run("sleep", Arrays.asList(10, 60000), 1, SLEEP);
+            fail();
+        } catch (IOException e) {
+            assertEquals("60000: sleep timed out after 1 seconds", e.getMessage());
+        }
+    }
+}
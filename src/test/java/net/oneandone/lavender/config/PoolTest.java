@@ -0,0 +1,138 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.config;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoolTest {
+    @Test
+    public void sessions() throws IOException {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        List<Connection> connections;
+        Node first;
+        Node second;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        for (int i = 0; i < 3; i++) {
+            cluster.addLocalhost(tmp.join("host" + i));
+        }
+        try (Pool pool = new Pool(world, "locked by test", 0, 2)) {
+            connections = cluster.connect(pool);
+            assertEquals(3, connections.size());
+            for (int i = 0; i < 3; i++) {
+                assertSame(cluster.hosts().get(i), connections.get(i).getHost());
+                assertSame(connections.get(i), pool.connect(cluster.hosts().get(i)));
+                assertTrue(tmp.join("host" + i, "tmp/lavender.lock").exists());
+                assertEquals(2, connections.get(i).sessions().size());
+            }
+            first = connections.get(0).checkout();
+            second = connections.get(0).checkout();
+            assertNotSame(first, second);
+            assertEquals(first, second);
+            connections.get(0).checkin(second);
+            assertSame(second, connections.get(0).checkout());
+        }
+        for (int i = 0; i < 3; i++) {
+            assertFalse(tmp.join("host" + i, "tmp/lavender.lock").exists());
+        }
+    }
+
+    @Test
+    public void retain() throws IOException {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        Pool pool;
+        Connection connection;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(tmp.join("host"));
+        pool = new Pool(world, "locked by test", 0, 1, true);
+        try (Pool job = pool.retain()) {
+            connection = cluster.connect(job).get(0);
+            job.lock(Collections.singletonList(connection));
+            assertTrue(tmp.join("host", Host.LOCK).exists());
+        }
+        // released by the job, but still connected
+        assertFalse(tmp.join("host", Host.LOCK).exists());
+        assertSame(connection, pool.connect(cluster.hosts().get(0)));
+        assertTrue(connection.isAlive());
+        pool.dropBroken();
+        assertSame(connection, pool.lookup(cluster.hosts().get(0)));
+        pool.close();
+        try {
+            pool.retain();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void optimistic() throws IOException {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        List<Connection> connections;
+        long started;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        for (int i = 0; i < 2; i++) {
+            cluster.addLocalhost(tmp.join("host" + i));
+        }
+        try (Pool pool = new Pool(world, "locked by test", 0, 1, true)) {
+            connections = cluster.connect(pool);
+            assertFalse(tmp.join("host0", Host.LOCK).exists());
+            pool.lock(connections);
+            assertEquals("locked by test", tmp.join("host1", Host.LOCK).readString());
+            try (Pool other = new Pool(world, "other", 1, 1)) {
+                started = System.currentTimeMillis();
+                try {
+                    cluster.connect(other);
+                    fail();
+                } catch (IOException e) {
+                    // expected
+                }
+                assertTrue(System.currentTimeMillis() - started >= 1000);
+            }
+            pool.unlock(connections);
+            assertFalse(tmp.join("host0", Host.LOCK).exists());
+            assertFalse(tmp.join("host1", Host.LOCK).exists());
+        }
+    }
+}
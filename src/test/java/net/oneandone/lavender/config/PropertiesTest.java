@@ -0,0 +1,86 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.config;
+
+import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.modules.MemoryBudget;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PropertiesTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void defaults() throws IOException {
+        Properties properties;
+
+        properties = load("");
+        assertEquals(MemoryBudget.DEFAULT, properties.memoryBudget);
+        assertEquals(0, properties.uploadBatch);
+        assertEquals(1, properties.sshSessions);
+        assertEquals(Distributor.GC_GRACE_MINUTES, properties.gcGrace);
+    }
+
+    @Test
+    public void numbers() throws IOException {
+        Properties properties;
+
+        properties = load("memoryBudget=10\nuploadBatch=100\nsshSessions=4\ngcGrace=-1\n");
+        assertEquals(10L * 1024 * 1024, properties.memoryBudget);
+        assertEquals(100, properties.uploadBatch);
+        assertEquals(4, properties.sshSessions);
+        assertEquals(-1, properties.gcGrace);
+        assertEquals(Distributor.GC_GRACE_MIN_MINUTES, load("gcGrace=" + Distributor.GC_GRACE_MIN_MINUTES).gcGrace);
+    }
+
+    @Test
+    public void invalid() throws IOException {
+        invalid("uploadBatch=many", "uploadBatch: number of files expected");
+        invalid("uploadBatch=-1", "uploadBatch: at least 0 expected");
+        invalid("sshSessions=0", "sshSessions: at least 1 expected");
+        // shorter than waiting for the lock
+        invalid("gcGrace=0", "gcGrace: negative or at least");
+        invalid("gcGrace=" + (Distributor.GC_GRACE_MIN_MINUTES - 1), "gcGrace: negative or at least");
+    }
+
+    private static void invalid(String content, String message) throws IOException {
+        try {
+            load(content);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static Properties load(String content) throws IOException {
+        FileNode file;
+
+        file = WORLD.getTemp().createTempFile();
+        file.writeString("svn=svn:x\n" + content);
+        try {
+            return Properties.load(file, false);
+        } finally {
+            file.deleteFile();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AllIndexTest {
+    private static final World WORLD = new World();
+
+    private static final byte[] MD5 = { 1, 2, 3 };
+
+    @Test
+    public void shardName() {
+        assertEquals("e2.idx", AllIndex.shardName("e2f/c714c4727ee9395f324cd2e7f331f/folder/test.png"));
+        assertEquals(AllIndex.shardName("img/test.png"), AllIndex.shardName("img/test.png"));
+        assertTrue(AllIndex.shardName("img/test.png").matches("[0-9a-f]{2}\\.idx"));
+        assertTrue(AllIndex.shardName("XYZ/test.png").matches("[0-9a-f]{2}\\.idx"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        Node dir;
+        AllIndex all;
+        AllIndex loaded;
+        Generation generation;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        all = AllIndex.load(Generation.load(dir));
+        all.addReference("aaa/1.png", MD5);
+        all.addReference("aaa/1.png", MD5);
+        all.addReference("bbb/2.png", MD5);
+        all.addReference("ccc/3.png", MD5);
+        save(all, dir);
+        assertEquals(Arrays.asList(".all/aa.idx", ".all/bb.idx", ".all/cc.idx"), new ArrayList<>(Generation.load(dir).names()));
+
+        loaded = AllIndex.load(Generation.load(dir));
+        assertEquals(all.toIndex(), loaded.toIndex());
+        assertEquals("2", loaded.lookup("aaa/1.png").getLavendelizedPath());
+        assertArrayEquals(MD5, loaded.lookup("aaa/1.png").md5());
+        assertNull(loaded.lookup("ddd/4.png"));
+
+        // only modified shards are saved; changes are added to their journal, empty shards are removed
+        generation = Generation.load(dir);
+        dir.join(generation.entry(".all/cc.idx").file).writeString("not loaded");
+        loaded = AllIndex.load(generation);
+        assertTrue(loaded.removeReferenceOpt("aaa/1.png"));
+        assertTrue(loaded.removeReferenceOpt("bbb/2.png"));
+        assertFalse(loaded.removeReferenceOpt("bbb/2.png"));
+        save(loaded, dir);
+        generation = Generation.load(dir);
+        assertEquals(Arrays.asList(".all/aa.idx", ".all/cc.idx"), new ArrayList<>(generation.names()));
+        assertEquals(1, generation.entry(".all/aa.idx").journals.size());
+        assertEquals("1", generation.load(".all/aa.idx").lookup("aaa/1.png").getLavendelizedPath());
+        try {
+            AllIndex.load(generation).lookup("ccc/3.png");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("digest mismatch"));
+        }
+    }
+
+    @Test
+    public void migrate() throws IOException {
+        Node dir;
+        Index legacy;
+        AllIndex all;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        legacy = new Index();
+        legacy.addReference("aaa/1.png", MD5);
+        legacy.addReference("aaa/1.png", MD5);
+        legacy.addReference("img/2.png", MD5);
+        legacy.save(dir.join(Index.ALL_IDX));
+        all = AllIndex.load(Generation.load(dir));
+        assertEquals(legacy, all.toIndex());
+        save(all, dir);
+        assertTrue(dir.join(Index.ALL_IDX).isDirectory());
+        assertEquals(legacy, Index.load(dir.join(Index.ALL_IDX, "all.idx")));
+        assertEquals(legacy, AllIndex.load(Generation.load(dir)).toIndex());
+    }
+
+    @Test
+    public void check() throws IOException {
+        Node first;
+        Node second;
+        AllIndex all;
+
+        first = WORLD.getTemp().createTempDirectory();
+        second = WORLD.getTemp().createTempDirectory();
+        all = new AllIndex();
+        all.addReference("aaa/1.png", MD5);
+        all.addReference("bbb/2.png", MD5);
+        save(all, first);
+        save(all, second);
+        AllIndex.load(Generation.load(first)).check(Generation.load(second));
+
+        // a host with a single-file all index
+        second.deleteTree();
+        all = AllIndex.load(Generation.load(first));
+        try {
+            all.check(Generation.load(second));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("index mismatch"));
+        }
+        second.mkdir();
+        all.toIndex().save(second.join(Index.ALL_IDX));
+        all.check(Generation.load(second));
+        all.addReference("ccc/3.png", MD5);
+        save(all, second);
+        assertEquals(Arrays.asList(".all/aa.idx", ".all/bb.idx", ".all/cc.idx"), new ArrayList<>(Generation.load(second).names()));
+        try {
+            AllIndex.load(Generation.load(first)).check(Generation.load(second));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("cc.idx"));
+        }
+    }
+
+    /** saves as the only indexes of the next generation in dir */
+    private static void save(final AllIndex all, Node dir) throws IOException {
+        Generation generation;
+        Map<String, String> digests;
+        Map<String, Index> indexes;
+        Map<String, Generation.Journal> journals;
+        Map<String, byte[]> data;
+        Map<String, Generation.Entry> entries;
+
+        generation = Generation.load(dir);
+        digests = new HashMap<>();
+        indexes = new HashMap<>();
+        journals = new HashMap<>();
+        data = new HashMap<>();
+        all.save(digests, indexes, journals);
+        entries = generation.next(digests, indexes, journals, new Generation.Source() {
+            @Override
+            public Index load(String name) throws IOException {
+                return all.load(name);
+            }
+        }, data);
+        generation.write(data);
+        generation.switchTo(Generation.manifest(entries));
+        generation.markFormat();
+    }
+}
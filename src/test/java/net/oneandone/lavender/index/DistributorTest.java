@@ -15,15 +15,38 @@
  */
 package net.oneandone.lavender.index;
 
+import net.oneandone.lavender.config.Alias;
+import net.oneandone.lavender.config.Cluster;
+import net.oneandone.lavender.config.Connection;
+import net.oneandone.lavender.config.Host;
+import net.oneandone.lavender.config.Pool;
+import net.oneandone.lavender.config.Target;
 import net.oneandone.lavender.modules.DefaultResource;
 import net.oneandone.lavender.modules.Resource;
 import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DistributorTest {
 
@@ -33,7 +56,7 @@ public class DistributorTest {
 
         Resource resource1 = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
         Resource resource2 = DefaultResource.forBytes("abcd".getBytes(), "modules/stageassistent/img/test.gif");
-        Distributor distributor = new Distributor(new HashMap<Node, Node>(), new Index(), new Index());
+        Distributor distributor = new Distributor(new HashMap<Node, Node>(), new AllIndex(), new Index());
         distributor.write(resource1.labelLavendelized("", "folder"), resource1);
         distributor.write(resource2.labelLavendelized("", "stageassistent"), resource1);
         index = distributor.close();
@@ -42,4 +65,707 @@ public class DistributorTest {
                 index.lookup("modules/stageassistent/img/test.gif").getLavendelizedPath());
     }
 
+    @Test
+    public void targets() throws IOException {
+        World world;
+        FileNode src;
+        Node fileRoot;
+        Node memoryRoot;
+        Map<Node, Node> targets;
+        Resource bytes;
+        Resource file;
+        Distributor distributor;
+        Label label;
+        byte[] data;
+
+        world = new World();
+        data = new byte[100000];
+        new Random(3).nextBytes(data);
+        src = world.getTemp().createTempFile();
+        src.writeBytes(data);
+        fileRoot = world.getTemp().createTempDirectory();
+        memoryRoot = world.getMemoryFilesystem().root().node("targets", null).mkdir();
+        targets = new LinkedHashMap<>();
+        targets.put(fileRoot.join("app.idx"), fileRoot);
+        targets.put(memoryRoot.join("app.idx"), memoryRoot);
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        bytes = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        file = DefaultResource.forNode(src, "img/big.bin");
+        distributor.write(bytes.labelLavendelized("", "folder"), bytes);
+        label = file.labelLavendelized("", "folder");
+        distributor.write(label, file);
+        distributor.close();
+        for (Node root : targets.values()) {
+            assertEquals("abcd", root.join("e2f/c714c4727ee9395f324cd2e7f331f/folder/test.png").readString());
+            assertArrayEquals(data, root.join(label.getLavendelizedPath()).readBytes());
+        }
+    }
+
+    @Test
+    public void generations() throws IOException {
+        World world;
+        Node root;
+        Map<Node, Node> targets;
+        Resource resource;
+        Distributor distributor;
+        Index index;
+        Generation generation;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("indexes/app.idx"), root);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.write(resource.labelNormal(""), resource);
+        index = distributor.close();
+        generation = Generation.load(root.join("indexes"));
+        assertFalse(generation.isLegacy());
+        assertEquals(Hex.encodeString(index.digest()), generation.digest("app.idx"));
+        assertEquals(index, generation.load("app.idx"));
+        // new docroots are marked too, because versions before generations would publish as if they were empty
+        assertEquals(Arrays.asList(Index.ALL_IDX, Generation.CURRENT, Generation.DATA, Generation.MARKER), names(root.join("indexes")));
+
+        // nothing to switch
+        distributor = new Distributor(targets, AllIndex.load(generation), index);
+        distributor.write(resource.labelNormal(""), resource);
+        distributor.close();
+        assertTrue(Generation.load(root.join("indexes")).same(generation));
+        assertFalse(root.join("indexes", Generation.PREVIOUS).exists());
+    }
+
+    @Test
+    public void rollback() throws IOException {
+        World world;
+        Node first;
+        Node second;
+        Map<Node, Node> targets;
+        Resource resource;
+        Distributor distributor;
+        Index index;
+        Generation generation;
+
+        world = new World();
+        first = world.getTemp().createTempDirectory();
+        second = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(first.join("indexes/app.idx"), first);
+        targets.put(second.join("indexes/app.idx"), second);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.write(resource.labelNormal(""), resource);
+        index = distributor.close();
+        generation = Generation.load(first.join("indexes"));
+
+        // switching fails on the second host
+        second.join("indexes", Generation.PREVIOUS, "blocker").mkdirs();
+        distributor = new Distributor(targets, AllIndex.load(generation), index);
+        resource = DefaultResource.forBytes("efgh".getBytes(), "img/test.png");
+        distributor.write(resource.labelNormal(""), resource);
+        try {
+            distributor.close();
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        assertTrue(Generation.load(first.join("indexes")).same(generation));
+        assertTrue(Generation.load(second.join("indexes")).same(generation));
+        assertEquals(index, Generation.load(first.join("indexes")).load("app.idx"));
+    }
+
+    @Test
+    public void journal() throws IOException {
+        World world;
+        Node root;
+        Node dir;
+        Map<Node, Node> targets;
+        Resource first;
+        Resource second;
+        Distributor distributor;
+        Index index;
+        Generation generation;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        dir = root.join("indexes");
+        targets = new LinkedHashMap<>();
+        targets.put(dir.join("app.idx"), root);
+        first = DefaultResource.forBytes("abcd".getBytes(), "img/first.png");
+        second = DefaultResource.forBytes("efgh".getBytes(), "img/second.png");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.write(first.labelNormal(""), first);
+        distributor.close();
+        generation = Generation.load(dir);
+        assertEquals(0, generation.entry("app.idx").journals.size());
+
+        distributor = new Distributor(targets, AllIndex.load(generation), generation.load("app.idx"));
+        distributor.write(first.labelNormal(""), first);
+        distributor.write(second.labelNormal(""), second);
+        index = distributor.close();
+        generation = Generation.load(dir);
+        assertEquals(1, generation.entry("app.idx").journals.size());
+        assertEquals(index, generation.load("app.idx"));
+        assertEquals(2, AllIndex.load(generation).toIndex().size());
+        assertTrue(dir.join(Generation.PREVIOUS).exists());
+    }
+
+    @Test
+    public void optimistic() throws IOException {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        Target target;
+        Resource x;
+        Resource y;
+        Resource shared;
+        Distributor a;
+        Distributor b;
+        Index all;
+        Generation generation;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(tmp.join("host0"));
+        cluster.addLocalhost(tmp.join("host1"));
+        cluster.addDocroot("web", "htdocs", "indexes", new Alias("a"));
+        target = new Target(cluster, cluster.docroot("web"), null);
+        x = DefaultResource.forBytes("x".getBytes(), "img/x.png");
+        y = DefaultResource.forBytes("y".getBytes(), "img/y.png");
+        shared = DefaultResource.forBytes("shared".getBytes(), "img/shared.png");
+        try (Pool first = new Pool(world, "first", 10, 1, true); Pool second = new Pool(world, "second", 10, 1, true)) {
+            // both publishes start with the same all index
+            a = target.open(first, "a.idx");
+            b = target.open(second, "b.idx");
+            a.write(x.labelLavendelized("", "f"), x);
+            a.write(shared.labelLavendelized("", "f"), shared);
+            b.write(y.labelLavendelized("", "f"), y);
+            b.write(shared.labelLavendelized("", "f"), shared);
+            assertFalse(tmp.join("host0", Host.LOCK).exists());
+            a.close();
+            b.close();
+            assertFalse(tmp.join("host0", Host.LOCK).exists());
+        }
+        for (int i = 0; i < 2; i++) {
+            generation = Generation.load(tmp.join("host" + i, "indexes"));
+            all = AllIndex.load(generation).toIndex();
+            assertEquals(3, all.size());
+            assertEquals("2", all.lookup(shared.labelLavendelized("", "f").getLavendelizedPath()).getLavendelizedPath());
+            assertEquals(2, generation.load("b.idx").size());
+        }
+    }
+
+    /** unlocked uploads older than the grace period might be removed by fsck -gc or by other publishes */
+    @Test
+    public void removedBeforeCommit() throws IOException, InterruptedException {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        Target target;
+        Resource x;
+        Label label;
+        Node file;
+        Distributor distributor;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(tmp.join("host0"));
+        cluster.addLocalhost(tmp.join("host1"));
+        cluster.addDocroot("web", "htdocs", "indexes", new Alias("a"));
+        target = new Target(cluster, cluster.docroot("web"), null);
+        x = DefaultResource.forBytes("x".getBytes(), "img/x.png");
+        label = x.labelLavendelized("", "f");
+        file = tmp.join("host1", "htdocs", label.getLavendelizedPath());
+        try (Pool pool = new Pool(world, "test", 10, 1, true)) {
+            distributor = target.open(pool, "a.idx");
+            distributor.setGcGrace(0);
+            distributor.write(label, x);
+            for (int i = 0; !file.exists(); i++) {
+                assertTrue(i < 100);
+                Thread.sleep(50);
+            }
+            file.deleteFile();
+            try {
+                distributor.close();
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("removed by garbage collection"));
+            }
+        }
+        assertFalse(tmp.join("host0", "indexes", Generation.CURRENT).exists());
+        assertEquals(Arrays.asList("b.png"), Distributor.missing(tmp.join("host0", "htdocs"),
+                Arrays.asList(label.getLavendelizedPath(), "b.png")));
+    }
+
+    /** index data files are written before waiting for the lock; fsck -gc might remove them meanwhile */
+    @Test
+    public void dataRemovedWhileWaiting() throws Exception {
+        World world;
+        FileNode tmp;
+        Cluster cluster;
+        Target target;
+        Resource x;
+        final Distributor distributor;
+        List<Connection> connections;
+        final Node data;
+        ExecutorService executor;
+        Future<Index> committed;
+
+        world = new World();
+        tmp = world.getTemp().createTempDirectory();
+        cluster = new Cluster("test");
+        cluster.addLocalhost(tmp.join("host0"));
+        cluster.addDocroot("web", "htdocs", "indexes", new Alias("a"));
+        target = new Target(cluster, cluster.docroot("web"), null);
+        x = DefaultResource.forBytes("x".getBytes(), "img/x.png");
+        data = tmp.join("host0", "indexes", Generation.DATA);
+        try (Pool pool = new Pool(world, "test", 10, 1, true); Pool other = new Pool(world, "other", 10, 1, true)) {
+            distributor = target.open(pool, "a.idx");
+            distributor.setGcGrace(0);
+            distributor.write(x.labelLavendelized("", "f"), x);
+            connections = cluster.connect(other);
+            other.lock(connections);
+            executor = Executors.newSingleThreadExecutor();
+            committed = executor.submit(new Callable<Index>() {
+                @Override
+                public Index call() throws IOException {
+                    return distributor.close();
+                }
+            });
+            executor.shutdown();
+            for (int i = 0; !data.exists() || data.find("*.idx").isEmpty(); i++) {
+                assertTrue(i < 100);
+                Thread.sleep(50);
+            }
+            // wait for all data files; the commit waits for the lock for 10 seconds
+            Thread.sleep(1000);
+            for (Node file : data.find("*.idx")) {
+                file.deleteFile();
+            }
+            other.unlock(connections);
+            assertEquals(1, committed.get().size());
+        }
+        assertEquals(1, Generation.load(tmp.join("host0", "indexes")).load("a.idx").size());
+    }
+
+    @Test
+    public void update() throws IOException {
+        World world;
+        Node root;
+        Map<Node, Node> targets;
+        AllIndex all;
+        Index prev;
+        Resource resource;
+        Label label;
+        Distributor distributor;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("app.idx"), root);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelNormal("");
+        root.join(label.getLavendelizedPath()).getParent().mkdirs();
+        root.join(label.getLavendelizedPath()).writeString("old");
+        prev = new Index();
+        prev.add(new Label(label.getOriginalPath(), label.getLavendelizedPath(), new byte[] { 1, 2, 3 }));
+        all = new AllIndex();
+        all.addReference(label.getLavendelizedPath(), new byte[] { 1, 2, 3 });
+        distributor = new Distributor(targets, all, prev);
+        assertTrue(distributor.write(label, resource));
+        distributor.close();
+        assertEquals("abcd", root.join(label.getLavendelizedPath()).readString());
+        assertEquals(1, root.join(label.getLavendelizedPath()).getParent().list().size());
+    }
+
+    @Test
+    public void create() throws IOException {
+        World world;
+        Node root;
+        Map<Node, Node> targets;
+        Resource resource;
+        Label label;
+        Distributor distributor;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("app.idx"), root);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelLavendelized("", "folder");
+        // partial file left by an aborted upload, not referenced by any index
+        root.join(label.getLavendelizedPath()).getParent().mkdirs();
+        root.join(label.getLavendelizedPath()).writeString("ab");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        assertTrue(distributor.write(label, resource));
+        distributor.close();
+        assertEquals("abcd", root.join(label.getLavendelizedPath()).readString());
+        assertEquals(1, root.join(label.getLavendelizedPath()).getParent().list().size());
+    }
+
+    @Test
+    public void failures() throws IOException {
+        World world;
+        Node good;
+        Node bad;
+        Map<Node, Node> targets;
+        Resource resource;
+        Label label;
+        Distributor distributor;
+
+        world = new World();
+        good = world.getTemp().createTempDirectory();
+        bad = world.getTemp().createTempFile(); // not a directory
+        targets = new LinkedHashMap<>();
+        targets.put(good.join("app.idx"), good);
+        targets.put(bad.join("app.idx"), bad);
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelLavendelized("", "folder");
+        distributor.write(label, resource);
+        try {
+            distributor.close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(bad.getURI().toString()));
+        }
+        assertEquals("abcd", good.join(label.getLavendelizedPath()).readString());
+        assertFalse(good.join(Generation.CURRENT).exists());
+    }
+
+    @Test
+    public void batch() throws IOException {
+        batch(false);
+        batch(true);
+    }
+
+    private void batch(boolean gzip) throws IOException {
+        World world;
+        Node root;
+        Map<Node, Node> targets;
+        Distributor distributor;
+        Resource resource;
+        Index index;
+        StringBuilder longPath;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("app.idx"), root);
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setBatch(3, gzip);
+        longPath = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            longPath.append("directory").append(i).append('/');
+        }
+        for (int i = 0; i < 10; i++) {
+            // paths starting with - are not taken for options
+            resource = DefaultResource.forBytes(("content " + i).getBytes(),
+                    (i == 7 ? longPath.toString() : i == 8 ? "-img/" : i == 9 ? "-" : "img/") + i + " it's.png");
+            distributor.write(resource.labelNormal(""), resource);
+        }
+        index = distributor.close();
+        assertEquals(10, index.size());
+        for (Label label : index) {
+            assertEquals("content " + label.getOriginalPath().charAt(label.getOriginalPath().indexOf(" it's") - 1),
+                    root.join(label.getLavendelizedPath()).readString());
+        }
+        for (Node file : root.list()) {
+            assertFalse(file.getName(), file.getName().startsWith(".lavender-batch"));
+        }
+    }
+
+    @Test
+    public void batchVerification() throws IOException {
+        World world;
+        Node root;
+        Map<Node, Node> targets;
+        Distributor distributor;
+        Resource resource;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("app.idx"), root);
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setBatch(100, false);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        distributor.write(new Label("img/test.png", "img/test.png", new byte[16]), resource);
+        try {
+            distributor.close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("batch of 1 files"));
+        }
+        assertEquals(0, root.list().size());
+    }
+
+    @Test
+    public void sessions() throws IOException {
+        World world;
+        FileNode root;
+        Map<Node, Node> targets;
+        Map<Node, List<Node>> sessions;
+        Distributor distributor;
+        Resource resource;
+        Index index;
+
+        world = new World();
+        root = world.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(root.join("app.idx"), root);
+        sessions = new HashMap<>();
+        sessions.put(root, Arrays.<Node>asList(root, world.file(root.getAbsolute()), world.file(root.getAbsolute())));
+        try {
+            distributor = new Distributor(targets, sessions, new AllIndex(), new Index());
+            for (int i = 0; i < 100; i++) {
+                resource = DefaultResource.forBytes(("content " + i).getBytes(), "img/" + i + ".png");
+                distributor.write(resource.labelNormal(""), resource);
+            }
+            index = distributor.close();
+            assertEquals(100, index.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals("content " + i, root.join("img/" + i + ".png").readString());
+            }
+        } finally {
+            root.deleteTree();
+        }
+    }
+
+    @Test
+    public void dedup() throws IOException {
+        World world;
+        Node dir;
+        Map<Node, Node> targets;
+        Resource a;
+        Resource b;
+        Label first;
+        Label second;
+        Distributor distributor;
+        Index index;
+        AllIndex all;
+
+        world = new World();
+        dir = world.getTemp().createTempDirectory();
+        targets = Collections.singletonMap(dir.join("app.idx"), dir);
+        a = DefaultResource.forBytes("abcd".getBytes(), "a/test.png");
+        b = DefaultResource.forBytes("abcd".getBytes(), "b/test.png");
+        first = a.labelLavendelized("", "first");
+        second = b.labelLavendelized("", "second");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setDedup(true);
+        assertTrue(distributor.write(first, a));
+        assertFalse(distributor.write(second, b));
+        index = distributor.close();
+        assertEquals(first.shared().getLavendelizedPath(), index.lookup("a/test.png").getLavendelizedPath());
+        assertEquals(first.shared().getLavendelizedPath(), index.lookup("b/test.png").getLavendelizedPath());
+        assertTrue(dir.join(first.shared().getLavendelizedPath()).isFile());
+        assertFalse(dir.join(first.getLavendelizedPath()).exists());
+        all = AllIndex.load(Generation.load(dir));
+        assertEquals("2", all.lookup(first.shared().getLavendelizedPath()).getLavendelizedPath());
+
+        // one reference less
+        distributor = new Distributor(targets, all, Generation.load(dir).load("app.idx"));
+        distributor.setDedup(true);
+        distributor.write(first, a);
+        distributor.close();
+        all = AllIndex.load(Generation.load(dir));
+        assertEquals("1", all.lookup(first.shared().getLavendelizedPath()).getLavendelizedPath());
+    }
+
+    @Test
+    public void tombstones() throws IOException {
+        World world;
+        Node dir;
+        Map<Node, Node> targets;
+        Resource resource;
+        Label label;
+        Node file;
+        Index tombstones;
+
+        world = new World();
+        dir = world.getTemp().createTempDirectory();
+        targets = Collections.singletonMap(dir.join("app.idx"), dir);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelLavendelized("", "folder");
+        file = dir.join(label.getLavendelizedPath());
+        publish(targets, label, resource);
+        assertTrue(file.isFile());
+
+        // the last reference is removed: the file is kept for the grace period
+        publish(targets, null, null);
+        assertTrue(file.isFile());
+        tombstones = Generation.load(dir).load(Distributor.TOMBSTONES);
+        assertEquals(1, tombstones.size());
+        assertArrayEquals(label.md5(), tombstones.lookup(label.getLavendelizedPath()).md5());
+
+        // referenced again: the tombstone is dropped
+        publish(targets, label, resource);
+        assertEquals(0, Generation.load(dir).load(Distributor.TOMBSTONES).size());
+        publish(targets, null, null);
+        assertEquals(1, Generation.load(dir).load(Distributor.TOMBSTONES).size());
+
+        // the grace period is over: removed with its directories
+        publish(targets, null, null);
+        assertFalse(file.exists());
+        assertFalse(dir.join(label.getLavendelizedPath().substring(0, 3)).exists());
+        assertEquals(0, Generation.load(dir).load(Distributor.TOMBSTONES).size());
+    }
+
+    @Test
+    public void gc() throws IOException {
+        World world;
+        Node dir;
+        Node old;
+        Node recent;
+
+        world = new World();
+        dir = world.getTemp().createTempDirectory();
+        dir.join("abc/def").mkdirs();
+        dir.join("abc/ghi").mkdirs();
+        old = dir.join("abc/def/old.png").writeString("old");
+        old.setLastModified(System.currentTimeMillis() - 10 * 60 * 1000);
+        recent = dir.join("abc/ghi/recent.png").writeString("recent");
+        assertEquals(1, Distributor.gc(dir, Arrays.asList("abc/def/old.png", "abc/ghi/recent.png", "abc/missing.png"), 5));
+        assertFalse(old.exists());
+        assertFalse(dir.join("abc/def").exists());
+        assertTrue(recent.exists());
+        assertEquals(0, Distributor.gc(dir.join("nosuchdir"), Arrays.asList("abc/ghi/recent.png"), 0));
+    }
+
+    @Test
+    public void resume() throws IOException {
+        resume(Distributor.GC_GRACE_MINUTES);
+    }
+
+    /** files are kept until fsck -gc, which applies the default grace period */
+    @Test
+    public void resumeWithoutGc() throws IOException {
+        resume(-1);
+    }
+
+    private void resume(int gcGrace) throws IOException {
+        World world;
+        FileNode cache;
+        Node good;
+        Node bad;
+        Map<Node, Node> targets;
+        Resource resource;
+        Label label;
+        Distributor distributor;
+
+        world = new World();
+        cache = world.getTemp().createTempDirectory();
+        good = world.getTemp().createTempDirectory();
+        bad = world.getTemp().createTempFile(); // not a directory
+        targets = new LinkedHashMap<>();
+        targets.put(good.join("app.idx"), good);
+        targets.put(bad.join("app.idx"), bad);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelLavendelized("", "folder");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setGcGrace(gcGrace);
+        distributor.setProgress(cache, false);
+        distributor.write(label, resource);
+        try {
+            distributor.close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, progressFiles(cache));
+
+        // recorded uploads are skipped
+        bad.deleteFile();
+        bad.mkdir();
+        good.join(label.getLavendelizedPath()).writeString("recorded");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setGcGrace(gcGrace);
+        distributor.setProgress(cache, true);
+        distributor.write(label, resource);
+        distributor.close();
+        assertEquals("recorded", good.join(label.getLavendelizedPath()).readString());
+        assertEquals("abcd", bad.join(label.getLavendelizedPath()).readString());
+        assertEquals(0, progressFiles(cache));
+    }
+
+    @Test
+    public void resumeRemoved() throws IOException {
+        World world;
+        FileNode cache;
+        Node good;
+        Node bad;
+        Map<Node, Node> targets;
+        Resource resource;
+        Label label;
+        Distributor distributor;
+
+        world = new World();
+        cache = world.getTemp().createTempDirectory();
+        good = world.getTemp().createTempDirectory();
+        bad = world.getTemp().createTempFile(); // not a directory
+        targets = new LinkedHashMap<>();
+        targets.put(good.join("app.idx"), good);
+        targets.put(bad.join("app.idx"), bad);
+        resource = DefaultResource.forBytes("abcd".getBytes(), "img/test.png");
+        label = resource.labelLavendelized("", "folder");
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setProgress(cache, false);
+        distributor.write(label, resource);
+        try {
+            distributor.close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // records of a host are ignored if its last uploads are missing, e.g. because gc removed them
+        bad.deleteFile();
+        bad.mkdir();
+        good.join(label.getLavendelizedPath()).deleteFile();
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributor.setProgress(cache, true);
+        distributor.write(label, resource);
+        distributor.close();
+        assertEquals("abcd", good.join(label.getLavendelizedPath()).readString());
+        assertEquals("abcd", bad.join(label.getLavendelizedPath()).readString());
+    }
+
+    /** publishes app.idx with the label only, or empty; without grace period */
+    private static void publish(Map<Node, Node> targets, Label label, Resource resource) throws IOException {
+        Generation generation;
+        Distributor distributor;
+
+        generation = Generation.load(targets.values().iterator().next());
+        distributor = new Distributor(targets, AllIndex.load(generation), generation.load("app.idx"));
+        distributor.setGcGrace(0);
+        if (label != null) {
+            distributor.write(label, resource);
+        }
+        distributor.close();
+    }
+
+    private static int progressFiles(Node cache) throws IOException {
+        int result;
+
+        result = 0;
+        for (String name : names(cache)) {
+            if (name.startsWith("progress-")) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static List<String> names(Node dir) throws IOException {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (Node file : dir.list()) {
+            result.add(file.getName());
+        }
+        Collections.sort(result);
+        return result;
+    }
 }
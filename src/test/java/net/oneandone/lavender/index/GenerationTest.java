@@ -0,0 +1,144 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GenerationTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void legacy() throws IOException {
+        Node dir;
+        Index a;
+        Index b;
+        Generation generation;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        a = index("a.png");
+        b = index("b.png");
+        a.save(dir.join("a.idx"));
+        b.save(dir.join("b.idx"));
+        generation = Generation.load(dir);
+        assertTrue(generation.isLegacy());
+        assertEquals(Arrays.asList("a.idx", "b.idx"), Arrays.asList(generation.names().toArray()));
+        assertEquals(Generation.digest(a), generation.digest("a.idx"));
+
+        a = index("c.png");
+        switchTo(generation, "a.idx", a);
+        generation = Generation.load(dir);
+        assertFalse(generation.isLegacy());
+        assertEquals(a, generation.load("a.idx"));
+        assertEquals(b, generation.load("b.idx"));
+        // kept for versions before generations, which fail on the markers
+        assertEquals(index("a.png"), Index.load(dir.join("a.idx")));
+        assertEquals("b.idx", generation.entry("b.idx").file);
+        for (String marker : Arrays.asList(Generation.MARKER, Index.ALL_IDX)) {
+            try {
+                Index.load(dir.join(marker));
+                fail();
+            } catch (IOException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void restore() throws IOException {
+        Node dir;
+        Generation empty;
+        Generation first;
+        Generation second;
+        Set<String> referenced;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        empty = Generation.load(dir);
+        switchTo(empty, "a.idx", index("a.png"));
+        first = Generation.load(dir);
+        switchTo(first, "a.idx", index("b.png"));
+        second = Generation.load(dir);
+        assertTrue(dir.join(Generation.PREVIOUS).exists());
+        referenced = second.referenced();
+        assertTrue(referenced.contains(first.entry("a.idx").file));
+        assertTrue(referenced.contains(second.entry("a.idx").file));
+
+        first.restore();
+        assertTrue(Generation.load(dir).same(first));
+        assertEquals(index("a.png"), Generation.load(dir).load("a.idx"));
+        empty.restore();
+        assertTrue(Generation.load(dir).isLegacy());
+    }
+
+    @Test
+    public void cache() throws IOException {
+        Node first;
+        Node second;
+        IndexCache cache;
+        Index loaded;
+
+        first = WORLD.getTemp().createTempDirectory();
+        second = WORLD.getTemp().createTempDirectory();
+        switchTo(Generation.load(first), "a.idx", index("a.png"));
+        switchTo(Generation.load(second), "a.idx", index("a.png"));
+        cache = new IndexCache(1);
+        loaded = Generation.load(first, cache).load("a.idx");
+        assertEquals(index("a.png"), loaded);
+        // same data file on another host
+        assertSame(loaded, Generation.load(second, cache).load("a.idx"));
+        assertNotSame(loaded, Generation.load(first).load("a.idx"));
+
+        switchTo(Generation.load(first), "b.idx", index("b.png"));
+        Generation.load(first, cache).load("b.idx");
+        assertEquals(1, cache.size());
+        assertNotSame(loaded, Generation.load(first, cache).load("a.idx"));
+    }
+
+    private static Index index(String path) {
+        Index result;
+
+        result = new Index();
+        result.add(new Label(path, "x/" + path, new byte[] { 1, 2, 3 }));
+        return result;
+    }
+
+    private static void switchTo(Generation generation, String name, Index index) throws IOException {
+        Map<String, byte[]> data;
+        Map<String, Generation.Entry> entries;
+
+        data = new HashMap<>();
+        entries = generation.next(Collections.singletonMap(name, Generation.digest(index)), Collections.singletonMap(name, index),
+                Collections.<String, Generation.Journal>emptyMap(), null, data);
+        generation.write(data);
+        generation.switchTo(Generation.manifest(entries));
+        generation.markFormat();
+    }
+}
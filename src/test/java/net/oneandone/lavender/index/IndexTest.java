@@ -21,7 +21,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -111,4 +114,69 @@ public class IndexTest {
         Index.load(indexFile);
     }
 
+    @Test
+    public void testDigest() throws IOException {
+        Index other;
+
+        other = new Index();
+        other.add(new Label("img/open.gif", "app/1234-open.gif", Hex.decode("1234".toCharArray())));
+        other.add(new Label("img/close.gif", "app/ABCDEF1234567890-close.gif", Hex.decode("abcdef1234567890".toCharArray())));
+        index.add(new Label("img/open.gif", "app/1234-open.gif", Hex.decode("1234".toCharArray())));
+        assertArrayEquals(index.digest(), other.digest());
+        index.save(indexFile);
+        assertArrayEquals(index.digest(), Index.load(indexFile).digest());
+        other.add(new Label("img/more.gif", "app/5678-more.gif", Hex.decode("5678".toCharArray())));
+        assertFalse(Arrays.equals(index.digest(), other.digest()));
+    }
+
+    @Test
+    public void testSaveSorted() throws IOException {
+        index.add(new Label("a b=c:d", "app/1234-a.gif", Hex.decode("1234".toCharArray())));
+        index.save(indexFile);
+        assertEquals("a\\ b\\=c\\:d=app/1234-a.gif\\:1234\n"
+                + "img/close.gif=app/ABCDEF1234567890-close.gif\\:abcdef1234567890\n", indexFile.readString());
+        assertEquals(index, Index.load(indexFile));
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        Index loaded;
+        Index next;
+        List<String> records;
+        FileNode first;
+        FileNode second;
+        FileNode other;
+
+        loaded = Index.load(indexFile);
+        next = new Index();
+        next.add(new Label("img/open gif", "app/1234-open.gif", Hex.decode("1234".toCharArray())));
+        records = next.delta(loaded);
+        assertEquals(Arrays.asList("-img/close.gif", "+img/open\\ gif=app/1234-open.gif\\:1234"), records);
+        assertTrue(loaded.appendable(records.size()));
+        first = WORLD.getTemp().createTempFile();
+        first.writeBytes(loaded.journal(records));
+        assertEquals(next, Index.load(indexFile, Arrays.asList(first)));
+
+        // incomplete block
+        second = WORLD.getTemp().createTempFile();
+        second.writeString("[\n+img/more.gif=app/5678-more.gif\\:5678\n");
+        assertEquals(next, Index.load(indexFile, Arrays.asList(first, second)));
+        loaded = Index.load(indexFile, Arrays.asList(first));
+        second.writeBytes(loaded.journal(index.delta(loaded)));
+        assertEquals(index, Index.load(indexFile, Arrays.asList(first, second)));
+
+        // blocks for other index files are ignored
+        other = WORLD.getTemp().createTempFile();
+        other.writeString("x=y\\:00\n");
+        assertEquals(1, Index.load(other, Arrays.asList(first, second)).size());
+
+        // too many blocks
+        for (int i = 0; i < 13; i++) {
+            second.appendBytes(loaded.journal(records));
+        }
+        assertTrue(Index.load(indexFile, Arrays.asList(first, second)).appendable(1));
+        second.appendBytes(loaded.journal(records));
+        assertFalse(Index.load(indexFile, Arrays.asList(first, second)).appendable(1));
+        assertFalse(new Index().appendable(0));
+    }
 }
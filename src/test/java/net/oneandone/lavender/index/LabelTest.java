@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 public class LabelTest {
 
@@ -54,6 +55,17 @@ public class LabelTest {
         assertEquals("852e7d76cdb8af7395cd039c0ecc293a", Hex.encodeString(md5));
     }
 
+    @Test
+    public void testShared() {
+        Label lavendelized;
+
+        assertSame(label, label.shared());
+        lavendelized = new Label("img/close.gif", "flash/852/e7d76cdb8af7395cd039c0ecc293a/module/close.gif", label.md5());
+        assertEquals("flash/852/e7d76cdb8af7395cd039c0ecc293a/close.gif", lavendelized.shared().getLavendelizedPath());
+        assertEquals("img/close.gif", lavendelized.shared().getOriginalPath());
+        assertEquals(lavendelized.shared().getLavendelizedPath(), lavendelized.shared().shared().getLavendelizedPath());
+    }
+
     @Test
     public void testToString() {
         String string = label.toString();
@@ -0,0 +1,70 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.sushi.fs.World;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShellTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void stream() throws IOException {
+        Shell shell;
+        final int[] count;
+
+        shell = Shell.createOpt(WORLD.getTemp().createTempDirectory());
+        count = new int[1];
+        // more output than pipes buffer while input is still written
+        shell.exec("cat", "cat", new Shell.Input() {
+            @Override
+            public void write(OutputStream dest) throws IOException {
+                for (int i = 0; i < 100000; i++) {
+                    dest.write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }, new Shell.Output() {
+            @Override
+            public void line(String line) {
+                assertEquals("line " + count[0], line);
+                count[0]++;
+            }
+        });
+        assertEquals(100000, count[0]);
+        assertEquals("a b\n", shell.exec("echo", "echo 'a b'", Shell.NO_INPUT));
+    }
+
+    @Test
+    public void failure() throws IOException {
+        Shell shell;
+
+        shell = Shell.createOpt(WORLD.getTemp().createTempDirectory());
+        try {
+            shell.exec("test", "echo stdout; echo stderr >&2; exit 3", Shell.NO_INPUT);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("test failed with exit code 3: stderr"));
+        }
+    }
+}
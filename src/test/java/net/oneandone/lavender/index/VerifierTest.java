@@ -0,0 +1,97 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.index;
+
+import net.oneandone.lavender.modules.Md5Cache;
+import net.oneandone.lavender.modules.Resource;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class VerifierTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void run() throws IOException {
+        FileNode docroot;
+        FileNode cacheFile;
+        Map<String, byte[]> expecteds;
+        Map<String, String> mismatches;
+
+        docroot = WORLD.getTemp().createTempDirectory();
+        cacheFile = WORLD.getTemp().createTempFile();
+        cacheFile.deleteFile();
+        expecteds = new HashMap<>();
+        for (int i = 0; i < 1200; i++) {
+            expecteds.put(file(docroot, "d" + (i % 7) + "/f " + i, "content " + i), Resource.md5(("content " + i).getBytes()));
+        }
+        expecteds.put("missing", Resource.md5(new byte[0]));
+        mismatches = new TreeMap<>();
+        assertEquals(1200, run(docroot, cacheFile, expecteds, mismatches));
+        assertEquals("{missing=null}", mismatches.toString());
+
+        mismatches.clear();
+        docroot.join("d1/f 1").writeString("broken").setLastModified(System.currentTimeMillis() + 5000);
+        assertEquals(1, run(docroot, cacheFile, expecteds, mismatches));
+        assertEquals("{d1/f 1=" + Hex.encodeString(Resource.md5("broken".getBytes())) + ", missing=null}", mismatches.toString());
+
+        // still hashed, because broken files are not recorded
+        mismatches.clear();
+        assertEquals(1, run(docroot, cacheFile, expecteds, mismatches));
+        assertEquals(2, mismatches.size());
+    }
+
+    @Test
+    public void millis() {
+        assertEquals(1000, Verifier.millis("1"));
+        assertEquals(1500, Verifier.millis("1.5"));
+        assertEquals(1234, Verifier.millis("1.2345678900"));
+    }
+
+    private static String file(Node docroot, String path, String content) throws IOException {
+        Node file;
+
+        file = docroot.join(path);
+        file.getParent().mkdirsOpt();
+        file.writeString(content);
+        return path;
+    }
+
+    private static int run(Node docroot, FileNode cacheFile, Map<String, byte[]> expecteds, final Map<String, String> mismatches)
+            throws IOException {
+        List<Node> sessions;
+
+        sessions = Arrays.asList(docroot, docroot);
+        return new Verifier(Md5Cache.load(cacheFile), false, 3).run(sessions, expecteds, new Verifier.Listener() {
+            @Override
+            public void mismatch(String path, String expected, String computed) {
+                synchronized (mismatches) {
+                    mismatches.put(path, computed);
+                }
+            }
+        });
+    }
+}
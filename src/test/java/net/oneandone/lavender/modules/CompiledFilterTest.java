@@ -0,0 +1,87 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.filter.Filter;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledFilterTest {
+    private static final String[] PATHS = {
+        "a.gif", "img/a.gif", "img/sub/a.GIF", "img/a.gif/b", "img/.gif", "gif", "a.css", "x/y/z/main.js", "x/y/z/main.json",
+        "WEB-INF/web.xml", "img/a.tar.gz", "img/a.gz", "secret/a.png", "img/secret/a.png", "img/b.png", "readme", "x.gif/a.png", "x.gif/b.png"
+    };
+
+    @Test
+    public void defaults() {
+        check(LavenderProperties.defaultFilter());
+    }
+
+    @Test
+    public void all() {
+        check(new Filter().includeAll());
+    }
+
+    @Test
+    public void suffixExcludes() {
+        check(new Filter().include("**/*.gif", "**/*.png", "**/*.tar.gz").exclude("**/*a.png", "**/*.GIF"));
+    }
+
+    @Test
+    public void complex() {
+        check(new Filter().include("**/*.gif", "**/*.tar.gz", "img/*", "x/**/main.*").exclude("secret/**/*", "**/*.GIF"));
+    }
+
+    @Test
+    public void excludeAll() {
+        check(new Filter().include(LavenderProperties.DEFAULT_INCLUDES).exclude("**/*"));
+    }
+
+    @Test
+    public void nothing() {
+        check(new Filter());
+    }
+
+    private void check(Filter filter) {
+        CompiledFilter compiled;
+
+        compiled = CompiledFilter.compile(filter);
+        for (String path : PATHS) {
+            assertEquals(path, filter.matches(path), compiled.matches(path));
+        }
+    }
+
+    @Test
+    public void prefixes() {
+        PathPrefixes prefixes;
+
+        prefixes = new PathPrefixes(Arrays.asList("img/", "modules/foo/", "raw"));
+        assertTrue(prefixes.matches("img/a.gif"));
+        assertTrue(prefixes.matches("img/sub/a.gif"));
+        assertFalse(prefixes.matches("img"));
+        assertFalse(prefixes.matches("imgx/a.gif"));
+        assertTrue(prefixes.matches("modules/foo/a.gif"));
+        assertFalse(prefixes.matches("modules/bar/a.gif"));
+        assertFalse(prefixes.matches("modules/a.gif"));
+        assertTrue(prefixes.matches("rawfile"));
+        assertTrue(prefixes.matches("raw/a.gif"));
+    }
+}
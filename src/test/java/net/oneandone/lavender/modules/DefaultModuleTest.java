@@ -15,7 +15,10 @@
  */
 package net.oneandone.lavender.modules;
 
+import net.oneandone.lavender.index.Hex;
+import net.oneandone.sushi.fs.Node;
 import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
 import net.oneandone.sushi.fs.filter.Filter;
 import net.oneandone.sushi.xml.Xml;
 import org.junit.Ignore;
@@ -27,9 +30,11 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -78,6 +83,63 @@ public class DefaultModuleTest {
         assertTrue(resources.containsKey("modules/frontend-tools/img/cross.png"));
     }
 
+    @Test
+    public void jarStream() throws Exception {
+        URL url;
+        Node war;
+        List<Module<?>> modules;
+        Map<String, Resource> resources;
+
+        url = getClass().getClassLoader().getResource("app-example-1.0.0.war");
+        war = WORLD.file(new File(url.toURI())).openZip();
+        modules = DefaultModule.jarModuleOpt(WORLD.getTemp().createTempDirectory(), new WarConfig(Arrays.asList("assets/")), true,
+                war.join("WEB-INF/lib/jar-module-1.0.0.jar"), null, null);
+        assertEquals(1, modules.size());
+        assertEquals("jar-module", modules.get(0).getName());
+        resources = new HashMap<>();
+        for (Resource resource : (Module<?>) modules.get(0)) {
+            resources.put(resource.getPath(), resource);
+        }
+        assertEquals(1, resources.size());
+        assertTrue(resources.containsKey("modules/jar-module/img/vi-oneandone-presenter.png"));
+    }
+
+    @Test
+    public void war() throws Exception {
+        FileNode war;
+        FileNode cache;
+        Md5Cache hashes;
+        Map<String, Resource> resources;
+        Resource resource;
+
+        war = WORLD.file(new File(getClass().getClassLoader().getResource("app-example-1.0.0.war").toURI()));
+        cache = WORLD.getTemp().createTempDirectory();
+        hashes = Md5Cache.load(cache.join("war.md5"));
+        resources = resources(DefaultModule.fromWar(cache, war, new MemoryBudget(0), hashes, null, null));
+        assertEquals(2, resources.size());
+        assertEquals("32ac032a1c5047a1cc42e19ee58c0c47", Hex.encodeString(resources.get("assets/vi-ui.png").getMd5()));
+        resource = resources.get("modules/jar-module/img/vi-oneandone-presenter.png");
+        assertEquals("fa54e8a567edb3216a6d4133712a2c00", Hex.encodeString(resource.getMd5()));
+        assertEquals(2, hashes.size());
+
+        // md5 sums are taken from the cache as long as size and crc match
+        hashes.put(resource.getPath(), resource.getSize(), ((JarResource) resource).getCrc(), new byte[] { 1 });
+        resources = resources(DefaultModule.fromWar(cache, war, new MemoryBudget(MemoryBudget.DEFAULT), hashes, null, null));
+        assertArrayEquals(new byte[] { 1 }, resources.get("modules/jar-module/img/vi-oneandone-presenter.png").getMd5());
+    }
+
+    private static Map<String, Resource> resources(List<Module<?>> modules) {
+        Map<String, Resource> result;
+
+        result = new HashMap<>();
+        for (Module<?> module : modules) {
+            for (Resource resource : module) {
+                result.put(resource.getPath(), resource);
+            }
+        }
+        return result;
+    }
+
     @Ignore
     @Test
     public void testPerformance() throws JAXBException, IOException {
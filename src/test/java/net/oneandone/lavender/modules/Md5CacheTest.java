@@ -0,0 +1,89 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class Md5CacheTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        FileNode dir;
+        Md5Cache cache;
+        Md5Cache loaded;
+
+        dir = WORLD.getTemp().createTempDirectory();
+        cache = Md5Cache.load(dir, dir.join("some/webapp"));
+        assertEquals(0, cache.size());
+        cache.put("img/a.png", 3, 1000, new byte[] { 1, 2, 3 });
+        cache.put("with space%.css", 0, 2000, new byte[] { 4 });
+        cache.put("removed.js", 1, 3000, new byte[] { 5 });
+        cache.retainAll(Arrays.asList("img/a.png", "with space%.css"));
+        cache.save();
+
+        loaded = Md5Cache.load(dir, dir.join("some/webapp"));
+        assertEquals(cache.getFile(), loaded.getFile());
+        assertEquals(2, loaded.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, loaded.lookup("img/a.png", 3, 1000));
+        assertArrayEquals(new byte[] { 4 }, loaded.lookup("with space%.css", 0, 2000));
+        assertNull(loaded.lookup("removed.js", 1, 3000));
+        assertNull(loaded.lookup("img/a.png", 4, 1000));
+        assertNull(loaded.lookup("img/a.png", 3, 1001));
+    }
+
+    @Test
+    public void reload() throws Exception {
+        FileNode file;
+        Md5Cache cache;
+        Md5Cache other;
+
+        file = WORLD.getTemp().createTempFile();
+        file.deleteFile();
+        cache = Md5Cache.load(file);
+        assertSame(cache, Md5Cache.reload(cache));
+        cache.put("a.png", 1, 1000, new byte[] { 1 });
+        cache.save();
+        assertSame(cache, Md5Cache.reload(cache));
+
+        other = Md5Cache.load(file);
+        other.put("b.png", 2, 2000, new byte[] { 2 });
+        other.save();
+        file.setLastModified(file.getLastModified() + 1000);
+        cache = Md5Cache.reload(cache);
+        assertNotSame(other, cache);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void corrupted() throws Exception {
+        FileNode file;
+
+        file = WORLD.getTemp().createTempFile();
+        file.writeString("a 1 2 00\nbroken\n");
+        assertEquals(0, Md5Cache.load(file).size());
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.lavender.index.AllIndex;
+import net.oneandone.lavender.index.Distributor;
+import net.oneandone.lavender.index.Generation;
+import net.oneandone.lavender.index.Index;
+import net.oneandone.lavender.index.Label;
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.fs.filter.Filter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PublisherTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void publish() throws IOException {
+        FileNode src;
+        FileNode docroot;
+        List<Module<?>> modules;
+        Map<Node, Node> targets;
+        Distributor distributor;
+        Map<String, Distributor> distributors;
+        Index index;
+        AllIndex all;
+        Label label;
+
+        src = WORLD.getTemp().createTempDirectory();
+        modules = new ArrayList<>();
+        for (int m = 0; m < 6; m++) {
+            src.join("m" + m, "img").mkdirs();
+            for (int f = 0; f < 100; f++) {
+                // same content in every module
+                src.join("m" + m, "img", f + ".png").writeString("file " + f);
+            }
+            modules.add(module(m == 5 ? "flash" : "web", "m" + m, src.join("m" + m)));
+        }
+        docroot = WORLD.getTemp().createTempDirectory();
+        targets = new LinkedHashMap<>();
+        targets.put(docroot.join("app.idx"), docroot);
+        distributor = new Distributor(targets, new AllIndex(), new Index());
+        distributors = new HashMap<>();
+        distributors.put("web", distributor);
+        assertEquals(500, Publisher.publish(modules, distributors));
+        index = distributor.close();
+        assertEquals(500, index.size());
+        for (Module<?> module : modules.subList(0, 5)) {
+            for (Resource resource : module) {
+                label = module.label(resource);
+                assertEquals(label.getLavendelizedPath(), index.lookup(label.getOriginalPath()).getLavendelizedPath());
+                assertEquals(resource.getData().length, docroot.join(label.getLavendelizedPath()).length());
+            }
+        }
+        assertFalse(docroot.join("m5").exists());
+
+        // nothing changed
+        all = AllIndex.load(Generation.load(docroot));
+        distributor = new Distributor(targets, all, index);
+        distributors.put("web", distributor);
+        assertEquals(0, Publisher.publish(modules, distributors));
+        assertEquals(index, distributor.close());
+    }
+
+    private static Module<Node> module(String type, String name, final Node dir) throws IOException {
+        Filter filter;
+
+        filter = new Filter();
+        filter.includeAll();
+        return new DefaultModule(type, name, true, name + "/", "", filter) {
+            @Override
+            protected Map<String, Node> scan(Filter filter) throws IOException {
+                Map<String, Node> result;
+
+                result = new HashMap<>();
+                for (Node file : dir.find("**/*.png")) {
+                    result.put(file.getRelative(dir), file);
+                }
+                return result;
+            }
+        };
+    }
+}
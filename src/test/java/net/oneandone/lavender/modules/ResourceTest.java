@@ -20,10 +20,22 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class ResourceTest {
     private Resource resource;
@@ -66,6 +78,49 @@ public class ResourceTest {
         Assert.assertEquals("852e7d76cdb8af7395cd039c0ecc293a", Hex.encodeString(md5));
     }
 
+    @Test
+    public void testMd5Streams() throws IOException {
+        byte[] data;
+        byte[] expected;
+
+        data = new byte[100000];
+        new Random(1).nextBytes(data);
+        expected = Resource.md5(data);
+        assertArrayEquals(expected, Resource.md5(new ByteArrayInputStream(data)));
+        assertArrayEquals(expected, Resource.md5(Channels.newChannel(new ByteArrayInputStream(data))));
+        assertArrayEquals(Resource.md5(), Resource.md5(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void testMd5Concurrent() throws Exception {
+        final byte[] data;
+        final byte[] expected;
+        ExecutorService executor;
+        List<Future<Boolean>> futures;
+
+        data = new byte[10000];
+        new Random(2).nextBytes(data);
+        expected = Resource.md5(data);
+        executor = Executors.newFixedThreadPool(4);
+        try {
+            futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        return Arrays.equals(expected, Resource.md5(new ByteArrayInputStream(data)))
+                                && Arrays.equals(expected, Resource.md5(data));
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testToString() {
         String string = resource.toString();
@@ -0,0 +1,128 @@
+/**
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.lavender.modules;
+
+import net.oneandone.sushi.fs.Node;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import net.oneandone.sushi.io.Buffer;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ZipIndexTest {
+    private static final World WORLD = new World();
+
+    @Test
+    public void war() throws Exception {
+        FileNode war;
+
+        war = WORLD.file(new File(getClass().getClassLoader().getResource("app-example-1.0.0.war").toURI()));
+        try (ZipFile zip = new ZipFile(war.toPath().toFile())) {
+            check(zip, ZipIndex.open(war));
+        }
+    }
+
+    @Test
+    public void nestedJar() throws Exception {
+        FileNode war;
+        ZipIndex index;
+        FileNode jar;
+
+        war = WORLD.file(new File(getClass().getClassLoader().getResource("app-example-1.0.0.war").toURI()));
+        try (ZipFile zip = new ZipFile(war.toPath().toFile())) {
+            try (InputStream src = zip.getInputStream(zip.getEntry("WEB-INF/lib/jar-module-1.0.0.jar"))) {
+                index = new ZipIndex("mem", ByteBuffer.wrap(new Buffer().readBytes(src)), 0);
+            }
+        }
+        assertNotNull(index.readOpt("META-INF/pustefix-module.xml"));
+        assertNull(index.readOpt("META-INF/nosuchfile"));
+        jar = WORLD.getTemp().createTempFile();
+        try {
+            war.openZip().join("WEB-INF/lib/jar-module-1.0.0.jar").copyFile(jar);
+            try (ZipFile zip = new ZipFile(jar.toPath().toFile())) {
+                check(zip, index);
+            }
+        } finally {
+            jar.deleteFile();
+        }
+    }
+
+    @Test
+    public void budget() throws Exception {
+        Node jar;
+        MemoryBudget budget;
+        ZipIndex heap;
+        ZipIndex spilled;
+
+        jar = WORLD.file(new File(getClass().getClassLoader().getResource("app-example-1.0.0.war").toURI()))
+                .openZip().join("WEB-INF/lib/jar-module-1.0.0.jar");
+        budget = new MemoryBudget(jar.length());
+        heap = ZipIndex.load(jar, budget);
+        assertEquals(jar.length(), heap.getHeap());
+        assertEquals(jar.length(), budget.getUsed());
+        spilled = ZipIndex.load(jar, budget);
+        assertEquals(0, spilled.getHeap());
+        assertEquals(heap.entries().size(), spilled.entries().size());
+        assertArrayEquals(heap.readOpt("META-INF/pustefix-module.xml"), spilled.readOpt("META-INF/pustefix-module.xml"));
+        budget.release(heap.getHeap());
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test(expected = IOException.class)
+    public void notAZip() throws Exception {
+        new ZipIndex("mem", ByteBuffer.wrap("no zip file".getBytes()), 0);
+    }
+
+    private static void check(ZipFile expected, ZipIndex index) throws IOException {
+        Enumeration<? extends ZipEntry> entries;
+        ZipEntry entry;
+        ZipIndex.Entry found;
+        int count;
+
+        count = 0;
+        entries = expected.entries();
+        while (entries.hasMoreElements()) {
+            entry = entries.nextElement();
+            found = index.lookup(entry.getName());
+            assertNotNull(entry.getName(), found);
+            assertEquals(entry.isDirectory(), found.isDirectory());
+            assertEquals(entry.getSize(), found.size);
+            assertEquals(entry.getCrc(), found.crc);
+            if (!entry.isDirectory()) {
+                try (InputStream src = expected.getInputStream(entry)) {
+                    assertArrayEquals(new Buffer().readBytes(src), index.read(found));
+                }
+                try (InputStream src = expected.getInputStream(entry); InputStream streamed = index.open(found)) {
+                    assertArrayEquals(new Buffer().readBytes(src), new Buffer().readBytes(streamed));
+                }
+            }
+            count++;
+        }
+        assertEquals(count, index.entries().size());
+    }
+}